@@ -0,0 +1,4 @@
+SET search_path TO public;
+
+-- assistant answers parsed into {answers: [...], conversationalGuidance}, message keeps the same answer as text
+alter table core.message add column if not exists answer jsonb null;
@@ -0,0 +1,18 @@
+SET search_path TO public;
+
+-- uploads an ingestion reuses or uploaded but has not stored a core.oaifile row for yet,
+-- a claimed upload is not deleted remotely; the claim is dropped when the rows are stored
+create table if not exists core.oaifileclaim (
+    oai_f_id varchar(30) not null,
+    prid int not null,
+    created timestamp not null default now()
+);
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'oaifileclaim_pkey') THEN
+        ALTER TABLE core.oaifileclaim ADD CONSTRAINT oaifileclaim_pkey PRIMARY KEY (oai_f_id, prid);
+    END IF;
+END $$;
+
+create index if not exists oaifileclaim_prid_idx on core.oaifileclaim (prid);
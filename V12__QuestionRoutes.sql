@@ -0,0 +1,5 @@
+SET search_path TO public;
+
+-- question routing state, restored by QuestionRouter when routing is turned off
+alter table core.assistant add column if not exists routed boolean not null default false; -- vsAll removed from the assistant
+alter table core.thread add column if not exists routed_oai_vs_id text null; -- store the thread file search points at
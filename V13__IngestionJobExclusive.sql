@@ -0,0 +1,12 @@
+SET search_path TO public;
+
+-- one queued or running job per project, a retry or refresh started meanwhile is refused
+update core.ingestionjob j set status='failed', error='Replaced by a newer job of the project', updated=now()
+where status in ('queued', 'running')
+and exists (
+    select 1 from core.ingestionjob newer
+    where newer.projectid=j.projectid and newer.status in ('queued', 'running') and newer.jobid>j.jobid
+);
+
+create unique index if not exists ingestionjob_active_idx on core.ingestionjob (projectid)
+where status in ('queued', 'running');
@@ -0,0 +1,5 @@
+SET search_path TO public;
+
+-- the instance running the job and its last sign of life, a job whose heartbeat expired is failed by any instance
+alter table core.ingestionjob add column if not exists owner varchar(36) null;
+alter table core.ingestionjob add column if not exists heartbeat timestamp null;
@@ -0,0 +1,7 @@
+SET search_path TO public;
+
+-- sha-256 of the uploaded bytes, used to reuse an uploaded file across branches and projects
+alter table core.oaifile add column if not exists contenthash char(64) null;
+
+create index if not exists oaifile_contenthash_idx on core.oaifile (contenthash, file_name, purpose);
+create index if not exists oaifile_oai_f_id_idx on core.oaifile (oai_f_id);
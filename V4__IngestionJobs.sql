@@ -0,0 +1,24 @@
+SET search_path TO public;
+
+-- background create-project and refresh-repo jobs
+create table if not exists core.ingestionjob (
+    jobid serial,
+    projectid int not null,
+    jobtype varchar(20) not null, -- create, refresh
+    status varchar(20) not null default 'queued', -- queued, running, done, failed
+    stage varchar(20) null, -- clone, classify, upload, attach, assistant
+    progress int not null default 0, -- items done in the current stage
+    total int not null default 0, -- items to do in the current stage
+    error text null,
+    created timestamp not null default now(),
+    updated timestamp not null default now()
+);
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'ingestionjob_pkey') THEN
+        ALTER TABLE core.ingestionjob ADD CONSTRAINT ingestionjob_pkey PRIMARY KEY (jobid);
+    END IF;
+END $$;
+
+create index if not exists ingestionjob_projectid_idx on core.ingestionjob (projectid, created desc);
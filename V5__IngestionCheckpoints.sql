@@ -0,0 +1,23 @@
+SET search_path TO public;
+
+-- parameters of the job needed to resume it (never credentials, they stay in core.usersecret)
+alter table core.ingestionjob add column if not exists params jsonb null;
+
+-- per file progress of a project ingestion, a retried ingestion skips the files found here
+create table if not exists core.ingestioncheckpoint (
+    projectid int not null,
+    prid int not null,
+    filepath varchar(1024) not null, -- path relative to the repository root
+    oai_f_id varchar(30) not null,
+    type varchar(20) not null, -- code, markup, config
+    attributes jsonb not null, -- vector store attributes of the file
+    attached boolean not null default false, -- attached to its type vector store and to vsAll
+    created timestamp not null default now()
+);
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'ingestioncheckpoint_pkey') THEN
+        ALTER TABLE core.ingestioncheckpoint ADD CONSTRAINT ingestioncheckpoint_pkey PRIMARY KEY (prid, filepath);
+    END IF;
+END $$;
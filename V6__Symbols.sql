@@ -0,0 +1,24 @@
+SET search_path TO public;
+
+-- declarations and files of the project resources, loaded in memory by the symbol index
+create table if not exists core.symbol (
+    symbolid serial,
+    projectid int not null,
+    prid int not null,
+    filepath varchar(1024) not null, -- path relative to the repository root
+    name varchar(512) not null,
+    kind varchar(20) not null, -- file, class, function, method, section, key
+    parent varchar(512) null, -- enclosing class or section
+    line int not null,
+    signature varchar(256) null -- the declaration line
+);
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'symbol_pkey') THEN
+        ALTER TABLE core.symbol ADD CONSTRAINT symbol_pkey PRIMARY KEY (symbolid);
+    END IF;
+END $$;
+
+create index if not exists symbol_projectid_idx on core.symbol (projectid);
+create index if not exists symbol_prid_filepath_idx on core.symbol (prid, filepath);
@@ -0,0 +1,7 @@
+SET search_path TO public;
+
+-- threads created ahead for new discussions, did stays null until a discussion claims the thread
+alter table core.thread alter column did drop not null;
+alter table core.thread add column if not exists created timestamp not null default now();
+
+create index if not exists thread_pool_idx on core.thread (vsid, threadid) where did is null;
@@ -0,0 +1,14 @@
+SET search_path TO public;
+
+-- history of a discussion, read newest first by keyset on msgid
+create index if not exists message_did_idx on core.message (did, msgid);
+create index if not exists thread_did_idx on core.thread (did, type);
+-- discussions of a project, read newest first by keyset on did
+create index if not exists discussion_projectid_idx on core.discussion (projectid, did);
+-- path lookups of the refresh, and the files of a project resource
+create index if not exists oaifile_prid_filepath_idx on core.oaifile (prid, filepath);
+create index if not exists vectorstore_projectid_idx on core.vectorstore (projectid, type);
+-- the primary key starts with userid, secrets are also read by project resource
+create index if not exists usersecret_prid_idx on core.usersecret (prid, label);
+-- vector store links are deleted by file
+create index if not exists vectorstore_oaifile_fid_idx on core.vectorstore_oaifile (fid);
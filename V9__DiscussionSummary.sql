@@ -0,0 +1,16 @@
+SET search_path TO public;
+
+-- rolling summary of the older messages of a discussion, the messages after lastmsgid are not in it
+create table if not exists core.discussionsummary (
+    did int not null,
+    summary text not null,
+    lastmsgid int not null,
+    updated timestamp not null default now()
+);
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'discussionsummary_pkey') THEN
+        ALTER TABLE core.discussionsummary ADD CONSTRAINT discussionsummary_pkey PRIMARY KEY (did);
+    END IF;
+END $$;
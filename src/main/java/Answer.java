@@ -0,0 +1,20 @@
+package com.unbumpkin.codechat.model;
+
+import java.util.List;
+
+/**
+ * Structured answer of the code search assistant, the format its instructions ask for.
+ * Stored as jsonb in core.message.answer.
+ */
+public record Answer(
+    List<Item> answers,
+    String conversationalGuidance
+) {
+    public record Item(
+        String explanation,
+        String language,
+        String code,
+        String codeExplanation,
+        List<String> references
+    ) {}
+}
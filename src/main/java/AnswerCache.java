@@ -0,0 +1,190 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.model.ProjectResource;
+import com.unbumpkin.codechat.model.UserSecret;
+import com.unbumpkin.codechat.model.UserSecret.Labels;
+import com.unbumpkin.codechat.repository.ProjectResourceRepository;
+
+/**
+ * Answers of the assistant by project, commit of its resources and normalized question.
+ * An entry is only found again while every resource of the project is at the same commit,
+ * refreshRepo also drops the project entries once it moved a commit hash.
+ * When codechat.answer-cache.similarity is set, a question whose embedding is that close
+ * to a cached one of the same project version is a hit too.
+ */
+@Service
+public class AnswerCache {
+    @Autowired
+    private ProjectResourceRepository projectResourceRepository;
+    @Autowired
+    private Embedder embedder;
+
+    @Value("${codechat.answer-cache.enabled:true}")
+    private boolean enabled;
+    @Value("${codechat.answer-cache.max-size:1000}")
+    private int maxSize;
+    @Value("${codechat.answer-cache.ttl:24h}")
+    private Duration ttl;
+    // Minimum cosine similarity of two questions sharing an answer, 0 to only match the same text
+    @Value("${codechat.answer-cache.similarity:0}")
+    private float similarity;
+
+    private record Key(int projectId, String version, String question) {}
+
+    private record Entry(String answer, float[] embedding, long runMillis, long created) {}
+
+    /**
+     * @param savedMillis sum of the run durations of the answers served from the cache
+     */
+    public record CacheStats(long hits, long misses, double hitRate, long savedMillis, int size) {}
+
+    // Access ordered, the least recently used entry is evicted first
+    private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+    // Commit hashes of the project resources, read once per refresh
+    private final Map<Integer,String> versions = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong savedMillis = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the cached answer, null on a miss
+     */
+    public String get(int projectId, String question) throws IOException {
+        Key key = new Key(projectId, version(projectId), normalize(question));
+        float[] embedding = similarity > 0 ? embedder.embed(key.question()) : null;
+        long now = System.currentTimeMillis();
+        Entry found;
+        synchronized (entries) {
+            found = entries.get(key);
+            if (found != null && isExpired(found, now)) {
+                entries.remove(key);
+                found = null;
+            }
+            if (found == null && embedding != null) {
+                found = closest(key, embedding, now);
+            }
+        }
+        if (found == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        savedMillis.addAndGet(found.runMillis());
+        return found.answer();
+    }
+
+    /**
+     * @param runMillis how long the run producing the answer took
+     */
+    public void put(int projectId, String question, String answer, long runMillis) throws IOException {
+        Key key = new Key(projectId, version(projectId), normalize(question));
+        float[] embedding = similarity > 0 ? embedder.embed(key.question()) : null;
+        synchronized (entries) {
+            entries.put(key, new Entry(answer, embedding, runMillis, System.currentTimeMillis()));
+        }
+    }
+
+    public void invalidateProject(int projectId) {
+        versions.remove(projectId);
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> key.projectId() == projectId);
+        }
+        System.out.println("Answer cache of project "+projectId+" invalidated");
+    }
+
+    public CacheStats stats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount+missCount;
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new CacheStats(hitCount, missCount, total == 0 ? 0 : (double) hitCount/total, savedMillis.get(), size);
+    }
+
+    /**
+     * Case, character width, spacing and the final punctuation do not change the question.
+     */
+    static String normalize(String question) {
+        String normalized = Normalizer.normalize(question, Normalizer.Form.NFKC)
+            .toLowerCase(Locale.ROOT)
+            .replaceAll("\\s+", " ")
+            .trim();
+        return normalized.replaceAll("[\\s?!.]+$", "");
+    }
+
+    private String version(int projectId) {
+        return versions.computeIfAbsent(projectId, id -> {
+            List<ProjectResource> resources = projectResourceRepository.getResources(id);
+            return resources.stream()
+                .sorted(Comparator.comparingInt(ProjectResource::prId))
+                .map(resource -> {
+                    UserSecret commitHash = resource.secrets().get(Labels.commitHash);
+                    return resource.prId()+":"+(commitHash == null ? "" : commitHash.value());
+                })
+                .collect(Collectors.joining(","));
+        });
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now-entry.created() > ttl.toMillis();
+    }
+
+    /**
+     * @return the most similar entry of the same project version above the threshold, null if none
+     */
+    private Entry closest(Key key, float[] embedding, long now) {
+        Entry best = null;
+        float bestScore = similarity;
+        Iterator<Map.Entry<Key,Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key,Entry> candidate = iterator.next();
+            Entry entry = candidate.getValue();
+            if (isExpired(entry, now)) {
+                iterator.remove();
+                continue;
+            }
+            if (candidate.getKey().projectId() != key.projectId()
+                || !candidate.getKey().version().equals(key.version())
+                || entry.embedding() == null || entry.embedding().length != embedding.length) {
+                continue;
+            }
+            float score = 0;
+            for (int i = 0; i < embedding.length; i++) {
+                score += embedding[i]*entry.embedding()[i];
+            }
+            if (score >= bestScore) {
+                best = entry;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+}
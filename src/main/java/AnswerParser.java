@@ -0,0 +1,180 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.unbumpkin.codechat.model.Answer;
+import com.unbumpkin.codechat.model.Answer.Item;
+
+/**
+ * Reads an assistant answer into an Answer in one pass over its tokens: the JSON is validated while it is read,
+ * control characters are removed from each value and the openai file ids found in the values are collected.
+ * Unknown fields are skipped, an answer that is not JSON becomes a single explanation.
+ */
+public final class AnswerParser {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final Pattern FILE_ID = Pattern.compile("\\bfile-[A-Za-z0-9]{8,}\\b");
+
+    private AnswerParser() {}
+
+    /**
+     * @param fileIds receives the openai file ids mentioned by the answer
+     */
+    public static Answer parse(String raw, Set<String> fileIds) {
+        String text = stripFence(raw.trim());
+        if (text.startsWith("{")) {
+            try (JsonParser parser = jsonFactory.createParser(text)) {
+                return readAnswer(parser, fileIds);
+            } catch (IOException e) {
+                System.out.println("Answer is not valid JSON: " + e.getMessage());
+            }
+        }
+        String explanation = sanitize(text, fileIds);
+        return new Answer(List.of(new Item(explanation, null, null, null, List.of())), null);
+    }
+
+    /**
+     * @return the answer with each text value mapped, to replace the file ids once they are resolved
+     */
+    public static Answer map(Answer answer, UnaryOperator<String> mapper) {
+        List<Item> items = new ArrayList<>(answer.answers().size());
+        for (Item item : answer.answers()) {
+            List<String> references = new ArrayList<>(item.references().size());
+            for (String reference : item.references()) {
+                references.add(mapper.apply(reference));
+            }
+            items.add(new Item(
+                apply(mapper, item.explanation()), item.language(), item.code(),
+                apply(mapper, item.codeExplanation()), references
+            ));
+        }
+        return new Answer(items, apply(mapper, answer.conversationalGuidance()));
+    }
+
+    private static Answer readAnswer(JsonParser parser, Set<String> fileIds) throws IOException {
+        expect(parser.nextToken(), JsonToken.START_OBJECT);
+        List<Item> items = new ArrayList<>();
+        String guidance = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("answers".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        items.add(readItem(parser, fileIds));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("conversationalGuidance".equals(field)) {
+                guidance = readText(parser, fileIds);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (parser.nextToken() != null) {
+            throw new IOException("Unexpected content after the answer");
+        }
+        return new Answer(items, guidance);
+    }
+
+    private static Item readItem(JsonParser parser, Set<String> fileIds) throws IOException {
+        String explanation = null;
+        String language = null;
+        String code = null;
+        String codeExplanation = null;
+        List<String> references = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "explanation" -> explanation = readText(parser, fileIds);
+                case "language" -> language = readText(parser, fileIds);
+                // The code is kept as written, ids in it are not references
+                case "code" -> code = readText(parser, null);
+                case "codeExplanation" -> codeExplanation = readText(parser, fileIds);
+                case "references" -> {
+                    if (value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            String reference = readText(parser, fileIds);
+                            if (reference != null && !reference.isBlank()) {
+                                references.add(reference);
+                            }
+                        }
+                    } else {
+                        String reference = readText(parser, fileIds);
+                        if (reference != null && !reference.isBlank()) {
+                            references.add(reference);
+                        }
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        return new Item(explanation, language, code, codeExplanation, references);
+    }
+
+    // Scalars as text, objects and arrays where text is expected are skipped
+    private static String readText(JsonParser parser, Set<String> fileIds) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        return sanitize(parser.getText(), fileIds);
+    }
+
+    /**
+     * Remove the control characters but new lines and tabs.
+     */
+    private static String sanitize(String text, Set<String> fileIds) {
+        StringBuilder clean = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean control = Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t';
+            if (control && clean == null) {
+                clean = new StringBuilder(text.length()).append(text, 0, i);
+            } else if (!control && clean != null) {
+                clean.append(c);
+            }
+        }
+        String result = clean == null ? text : clean.toString();
+        if (fileIds != null && result.contains("file-")) {
+            Matcher matcher = FILE_ID.matcher(result);
+            while (matcher.find()) {
+                fileIds.add(matcher.group());
+            }
+        }
+        return result;
+    }
+
+    private static String stripFence(String text) {
+        if (!text.startsWith("```")) {
+            return text;
+        }
+        int start = text.indexOf('\n');
+        int end = text.lastIndexOf("```");
+        return start < 0 || end <= start ? text : text.substring(start+1, end).trim();
+    }
+
+    private static String apply(UnaryOperator<String> mapper, String text) {
+        return text == null ? null : mapper.apply(text);
+    }
+
+    private static void expect(JsonToken token, JsonToken expected) throws IOException {
+        if (token != expected) {
+            throw new IOException("Expected "+expected+" but found "+token);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.unbumpkin.codechat.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.model.Answer;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.FileReference;
+
+/**
+ * Parses assistant answers and replaces the openai file ids they mention by markdown links to the project files.
+ * All the ids of an answer missing from the cache are read with one query.
+ */
+@Service
+public class AnswerReferenceResolver {
+    private static final Pattern FILE_ID = Pattern.compile("\\bfile-[A-Za-z0-9]{8,}\\b");
+
+    @Autowired
+    private OaiFileReferenceRepository referenceRepository;
+
+    private final int maxSize;
+    // Markdown link of each file id by project, ids without a reference are not cached, they may be stored later
+    private final LinkedHashMap<String,String> links = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public AnswerReferenceResolver(@Value("${codechat.answer.file-cache-size:10000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the validated and sanitized answer, its file ids replaced by links when they are known
+     */
+    public Answer parse(int projectId, String raw) {
+        Set<String> fileIds = new HashSet<>();
+        Answer answer = AnswerParser.parse(raw, fileIds);
+        if (fileIds.isEmpty()) {
+            return answer;
+        }
+        Map<String,String> resolved = resolve(projectId, fileIds);
+        if (resolved.isEmpty()) {
+            return answer;
+        }
+        return AnswerParser.map(answer, text -> {
+            if (!text.contains("file-")) {
+                return text;
+            }
+            Matcher matcher = FILE_ID.matcher(text);
+            StringBuilder replaced = new StringBuilder(text.length());
+            while (matcher.find()) {
+                matcher.appendReplacement(replaced, Matcher.quoteReplacement(
+                    resolved.getOrDefault(matcher.group(), matcher.group())
+                ));
+            }
+            matcher.appendTail(replaced);
+            return replaced.toString();
+        });
+    }
+
+    public void invalidateProject(int projectId) {
+        String prefix = projectId+":";
+        synchronized (links) {
+            links.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    private Map<String,String> resolve(int projectId, Set<String> fileIds) {
+        Map<String,String> resolved = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        synchronized (links) {
+            for (String fileId : fileIds) {
+                String link = links.get(projectId+":"+fileId);
+                if (link != null) {
+                    resolved.put(fileId, link);
+                } else {
+                    missing.add(fileId);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return resolved;
+        }
+        Map<String,FileReference> references = referenceRepository.getReferencesByFileIds(projectId, List.copyOf(missing));
+        synchronized (links) {
+            for (FileReference reference : references.values()) {
+                String link = "["+reference.fileName()+"]("+reference.filePath()+" \""+reference.filePath()+"\")";
+                links.put(projectId+":"+reference.oaiFileId(), link);
+                resolved.put(reference.oaiFileId(), link);
+            }
+        }
+        return resolved;
+    }
+}
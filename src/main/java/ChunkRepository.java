@@ -0,0 +1,194 @@
+package com.unbumpkin.codechat.repository;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Rows of core.chunk, the embeddings are exchanged with pgvector in its text form.
+ */
+@Repository
+public class ChunkRepository {
+    private static final TypeReference<Map<String,String>> METADATA_TYPE = new TypeReference<>() {};
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * @param uri the chunk source, a file of a project resource is "pr:{prId}/{relative path}"
+     * @param start first line of the chunk in its source, 1 based
+     * @param embedding null when not loaded
+     */
+    public record Chunk(
+        int chunkId, int projectId, String uri, String chunkType, String content, int start,
+        float[] embedding, Map<String,String> metadata
+    ) {}
+
+    @FunctionalInterface
+    public interface EmbeddingHandler {
+        void handle(int chunkId, float[] embedding);
+    }
+
+    /**
+     * Stream the embeddings of the project chunks, chunks without embedding are skipped.
+     */
+    public void forEachEmbedding(int projectId, EmbeddingHandler handler) {
+        jdbcTemplate.query(
+            "select chunkid, embedding::text as embedding from core.chunk where projectid=? and embedding is not null",
+            rs -> {
+                handler.handle(rs.getInt("chunkid"), parseVector(rs.getString("embedding")));
+            },
+            projectId
+        );
+    }
+
+    /**
+     * @return the chunks without their embedding, by id
+     */
+    public Map<Integer,Chunk> getChunks(Collection<Integer> chunkIds) {
+        Map<Integer,Chunk> chunks = new HashMap<>();
+        if (chunkIds.isEmpty()) {
+            return chunks;
+        }
+        jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement("""
+                    select chunkid, projectid, uri, chunktype, content, start, metadata from core.chunk
+                    where chunkid = any(?)
+                    """);
+                ps.setArray(1, connection.createArrayOf("int4", chunkIds.toArray()));
+                return ps;
+            }, rs -> {
+                Chunk chunk = new Chunk(
+                    rs.getInt("chunkid"),
+                    rs.getInt("projectid"),
+                    rs.getString("uri"),
+                    rs.getString("chunktype"),
+                    rs.getString("content"),
+                    rs.getInt("start"),
+                    null,
+                    readMetadata(rs.getString("metadata"))
+                );
+                chunks.put(chunk.chunkId(), chunk);
+            }
+        );
+        return chunks;
+    }
+
+    /**
+     * Insert the chunks, their ids are taken from the sequence first so they come back in order.
+     * @return the chunks with their ids
+     */
+    public List<Chunk> addChunks(List<Chunk> chunks) {
+        if (chunks.isEmpty()) {
+            return List.of();
+        }
+        List<Integer> ids = jdbcTemplate.queryForList(
+            "select nextval(pg_get_serial_sequence('core.chunk', 'chunkid'))::int from generate_series(1, ?)",
+            Integer.class, chunks.size()
+        );
+        List<Chunk> added = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            added.add(new Chunk(
+                ids.get(i), chunk.projectId(), chunk.uri(), chunk.chunkType(), chunk.content(), chunk.start(),
+                chunk.embedding(), chunk.metadata()
+            ));
+        }
+        jdbcTemplate.batchUpdate("""
+            insert into core.chunk (chunkid, projectid, uri, chunktype, content, start, embedding, metadata)
+            values (?, ?, ?, ?, ?, ?, ?::vector, ?::jsonb)
+            """, added, 500, (ps, chunk) -> {
+                ps.setInt(1, chunk.chunkId());
+                ps.setInt(2, chunk.projectId());
+                ps.setString(3, chunk.uri());
+                ps.setString(4, chunk.chunkType());
+                ps.setString(5, chunk.content());
+                ps.setInt(6, chunk.start());
+                ps.setString(7, chunk.embedding() == null ? null : formatVector(chunk.embedding()));
+                ps.setString(8, chunk.metadata() == null ? null : writeMetadata(chunk.metadata()));
+            }
+        );
+        return added;
+    }
+
+    /**
+     * @return the ids of the deleted chunks
+     */
+    public List<Integer> deleteChunksByUris(int projectId, Collection<String> uris) {
+        if (uris.isEmpty()) {
+            return List.of();
+        }
+        return jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(
+                    "delete from core.chunk where projectid=? and uri = any(?) returning chunkid"
+                );
+                ps.setInt(1, projectId);
+                ps.setArray(2, connection.createArrayOf("varchar", uris.toArray()));
+                return ps;
+            }, (rs, rowNum) -> rs.getInt("chunkid")
+        );
+    }
+
+    public List<Integer> deleteChunksByProjectId(int projectId) {
+        return jdbcTemplate.query(
+            "delete from core.chunk where projectid=? returning chunkid",
+            (rs, rowNum) -> rs.getInt("chunkid"), projectId
+        );
+    }
+
+    static String formatVector(float[] vector) {
+        StringBuilder text = new StringBuilder(vector.length*10).append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(vector[i]);
+        }
+        return text.append(']').toString();
+    }
+
+    static float[] parseVector(String text) {
+        String values = text.substring(1, text.length()-1);
+        if (values.isEmpty()) {
+            return new float[0];
+        }
+        String[] parts = values.split(",");
+        float[] vector = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            vector[i] = Float.parseFloat(parts[i]);
+        }
+        return vector;
+    }
+
+    private Map<String,String> readMetadata(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, METADATA_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Invalid chunk metadata: "+json, e);
+        }
+    }
+
+    private String writeMetadata(Map<String,String> metadata) {
+        try {
+            return objectMapper.writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize chunk metadata", e);
+        }
+    }
+}
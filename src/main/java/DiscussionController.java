@@ -1,8 +1,13 @@
 package com.unbumpkin.codechat.controller;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -11,19 +16,36 @@ import com.unbumpkin.codechat.dto.request.AddOaiThreadRequest;
 import com.unbumpkin.codechat.dto.request.DiscussionNameSuggestion;
 import com.unbumpkin.codechat.dto.request.DiscussionUpdateRequest;
 import com.unbumpkin.codechat.dto.request.MessageCreateRequest;
+import com.unbumpkin.codechat.model.Answer;
 import com.unbumpkin.codechat.model.Discussion;
 import com.unbumpkin.codechat.model.Message;
 import com.unbumpkin.codechat.model.openai.Assistant;
 import com.unbumpkin.codechat.model.openai.OaiThread;
 import com.unbumpkin.codechat.repository.DiscussionRepository;
+import com.unbumpkin.codechat.repository.MessageHistoryRepository;
+import com.unbumpkin.codechat.repository.MessageHistoryRepository.HistoryMessage;
+import com.unbumpkin.codechat.repository.MessageHistoryRepository.Page;
 import com.unbumpkin.codechat.repository.MessageRepository;
-import com.unbumpkin.codechat.repository.openai.AssistantRepository;
 import com.unbumpkin.codechat.repository.openai.OaiFileRepository;
 import com.unbumpkin.codechat.repository.openai.OaiThreadRepository;
+import com.unbumpkin.codechat.service.AnswerCache;
+import com.unbumpkin.codechat.service.AnswerReferenceResolver;
+import com.unbumpkin.codechat.service.AnswerCache.CacheStats;
+import com.unbumpkin.codechat.service.DiscussionMetadataCache;
+import com.unbumpkin.codechat.service.DiscussionSummaryService;
+import com.unbumpkin.codechat.service.LocalRetrievalService;
+import com.unbumpkin.codechat.service.ProjectCleanupService;
+import com.unbumpkin.codechat.service.SymbolIndexService;
 import com.unbumpkin.codechat.service.openai.ChatService;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient;
 import com.unbumpkin.codechat.service.openai.OaiMessageService;
 import com.unbumpkin.codechat.service.openai.OaiRunService;
+import com.unbumpkin.codechat.service.openai.OaiRunStream;
+import com.unbumpkin.codechat.service.openai.OaiRunStream.StreamedAnswer;
+import com.unbumpkin.codechat.service.openai.OaiThreadPool;
 import com.unbumpkin.codechat.service.openai.OaiThreadService;
+import com.unbumpkin.codechat.service.openai.QuestionRouter;
+import com.unbumpkin.codechat.service.openai.RunPoller;
 import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
 import com.unbumpkin.codechat.service.openai.BaseOpenAIClient.Models;
 import com.unbumpkin.codechat.service.openai.BaseOpenAIClient.Roles;
@@ -31,6 +53,11 @@ import com.unbumpkin.codechat.service.openai.BaseOpenAIClient.Roles;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RestController
 @RequestMapping("/api/v1/discussions")
@@ -41,7 +68,7 @@ public class DiscussionController {
     @Autowired
     private MessageRepository messageRepository;
     @Autowired
-    private AssistantRepository assistantRepository;
+    private MessageHistoryRepository historyRepository;
     @Autowired
     private OaiThreadService threadService;
     @Autowired
@@ -52,18 +79,66 @@ public class DiscussionController {
     OaiThreadService oaiThreadService;
     @Autowired
     OaiFileRepository oaiFileRepository;
+    @Autowired
+    private LocalRetrievalService localRetrievalService;
+    @Autowired
+    private SymbolIndexService symbolIndexService;
+    @Autowired
+    private AnswerCache answerCache;
+    @Autowired
+    private DiscussionMetadataCache metadataCache;
+    @Autowired
+    private RunPoller runPoller;
+    @Autowired
+    private OaiThreadPool threadPool;
+    @Autowired
+    private QuestionRouter questionRouter;
+    @Autowired
+    private DiscussionSummaryService summaryService;
+    @Autowired
+    private AnswerReferenceResolver referenceResolver;
+    @Autowired
+    private OaiHttpClient httpClient;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private ProjectCleanupService projectCleanupService;
+
+    // Largest page of the history endpoints
+    private static final int MAX_PAGE_SIZE = 200;
 
+    // Chunks of local retrieval added to each question when it is enabled
+    @Value("${codechat.retrieval.context-chunks:8}")
+    private int contextChunks;
+    // Size of the discussion context sent for name suggestions
+    @Value("${codechat.summary.suggest-budget:2000}")
+    private int suggestBudget;
+
+    // Streams and finished runs are handled on virtual threads so no servlet thread waits on a run,
+    // they keep the user of the request for the per user limit of OaiHttpClient
+    private final ExecutorService streamExecutor = new DelegatingSecurityContextExecutorService(
+        Executors.newVirtualThreadPerTaskExecutor()
+    );
 
 
     @PostMapping
     public ResponseEntity<Discussion> createDiscussion(
         @RequestBody Discussion discussionRequest
     ) throws IOException {
+        // The thread of a discussion created now could outlive the reaper
+        if (projectCleanupService.isDeleted(discussionRequest.projectId())) {
+            return ResponseEntity.notFound().build();
+        }
         Discussion discussion=discussionRepository.addDiscussion(discussionRequest);
-        Assistant assistant=assistantRepository.getAssistantByProjectId(discussion.projectId());
-        String oaiThreadId=threadService.createThread();
-        System.out.println("OpenAi thread " + oaiThreadId+" created...");
-        threadRepository.addThread(new AddOaiThreadRequest(oaiThreadId, assistant.codevsid(),discussion.did(), "code"));
+        Assistant assistant=metadataCache.getAssistant(discussion.projectId());
+        String oaiThreadId=threadPool.claim(assistant.codevsid(), discussion.did());
+        if(oaiThreadId==null){
+            // Pool empty or disabled
+            oaiThreadId=threadService.createThread();
+            System.out.println("OpenAi thread " + oaiThreadId+" created...");
+            threadRepository.addThread(new AddOaiThreadRequest(oaiThreadId, assistant.codevsid(),discussion.did(), "code"));
+        }
+        metadataCache.invalidateDiscussion(discussion.did());
 
         return ResponseEntity.ok(discussion);
     }
@@ -73,11 +148,12 @@ public class DiscussionController {
     ) throws IOException {
         try {
             Message returnedMessage=messageRepository.addMessage(request);
-            Discussion discussion=discussionRepository.getDiscussionById(returnedMessage.discussionId());
-            Map<Types,OaiThread> threadMap=threadRepository.getAllThreadsByDiscussionId(discussion.did());
+            Discussion discussion=metadataCache.getDiscussion(returnedMessage.discussionId());
+            Map<Types,OaiThread> threadMap=metadataCache.getThreads(discussion.did());
             OaiThread thread=threadMap.get(Types.code);
             OaiMessageService messageService=new OaiMessageService(thread.oaiThreadId());
-            String oaiMsgId=messageService.createMessage(Roles.user,returnedMessage.message());
+            String question=withContext(discussion.projectId(), returnedMessage.message());
+            String oaiMsgId=messageService.createMessage(Roles.user,question);
             System.out.println("OpenAi message " + oaiMsgId+" created...");
             return ResponseEntity.ok(returnedMessage);
         } catch (Exception e) {
@@ -86,19 +162,57 @@ public class DiscussionController {
             throw e;
         }
     }
+    /**
+     * The request thread is released once the run is started, the answer is stored and sent
+     * when the run poller sees the run finished.
+     */
     @PostMapping("/{did}/answer-question")
-    public ResponseEntity<Message> answerQuestion(@PathVariable int did) throws IOException {
-        Discussion discussion = discussionRepository.getDiscussionById(did);
-        Assistant assistant = assistantRepository.getAssistantByProjectId(discussion.projectId());
-        Map<Types, OaiThread> threadMap = threadRepository.getAllThreadsByDiscussionId(did);
+    public DeferredResult<ResponseEntity<Message>> answerQuestion(@PathVariable int did) throws IOException {
+        Discussion discussion = metadataCache.getDiscussion(did);
+        Assistant assistant = metadataCache.getAssistant(discussion.projectId());
+        Map<Types, OaiThread> threadMap = metadataCache.getThreads(did);
         OaiThread thread = threadMap.get(Types.code);
+        // No servlet timeout, the run poller gives up on runs that take too long
+        DeferredResult<ResponseEntity<Message>> result = new DeferredResult<>(0L);
+        List<HistoryMessage> messages = latestMessages(did);
+        String cacheableQuestion = cacheableQuestion(messages);
+        String direct = answerWithoutRun(discussion, lastQuestion(messages), cacheableQuestion);
+        if (direct != null) {
+            result.setResult(ResponseEntity.ok(storeDirectAnswer(discussion, thread, direct)));
+            return result;
+        }
+        long started = System.currentTimeMillis();
+        questionRouter.prepareThread(discussion.projectId(), assistant.oaiAid(), thread.oaiThreadId(), lastQuestion(messages));
         OaiRunService runService = new OaiRunService(assistant.oaiAid(), thread.oaiThreadId());
-        OaiMessageService msgService = new OaiMessageService(thread.oaiThreadId());
         String OaiRunId = runService.create();
         System.out.println("Starting OpenAi run " + OaiRunId + "...");
         System.out.println("Waiting for answer...");
-        runService.waitForAnswer(OaiRunId);
-    
+        CompletableFuture<JsonNode> run = runPoller.await(thread.oaiThreadId(), OaiRunId);
+        result.onError(error -> run.cancel(false));
+        run.thenAcceptAsync(runNode -> {
+            try {
+                String status = runNode.path("status").asText();
+                if (!"completed".equals(status)) {
+                    throw new IOException("Run " + OaiRunId + " ended with status " + status + ": " + runNode.path("last_error"));
+                }
+                Message message = storeRunAnswer(discussion, thread, cacheableQuestion, started);
+                result.setResult(ResponseEntity.ok(message));
+            } catch (Exception e) {
+                System.out.println("exception in answerQuestion: " + e.getMessage());
+                result.setErrorResult(e);
+            }
+        }, streamExecutor).exceptionally(error -> {
+            System.out.println("exception in answerQuestion: " + error.getMessage());
+            result.setErrorResult(error instanceof CompletionException ? error.getCause() : error);
+            return null;
+        });
+        return result;
+    }
+
+    private Message storeRunAnswer(
+        Discussion discussion, OaiThread thread, String cacheableQuestion, long started
+    ) throws IOException {
+        OaiMessageService msgService = new OaiMessageService(thread.oaiThreadId());
         JsonNode jsonNode = msgService.retrieveMessage(msgService.listMessages().get(0));
         JsonNode answerNode = jsonNode.findValue("value");
     
@@ -108,41 +222,253 @@ public class DiscussionController {
             : objectMapper.writeValueAsString(answerNode);
         
         System.out.println("AI Answer: " + answer);
-        // If you need to replace references:
-        // Set<String> refFiles = AnswerUtils.getReferencesFileIds(answer);
-        // List<OaiFile> refFileMap = oaiFileRepository.retrieveFiles(refFiles.toArray(String[]::new));
-        // answer = AnswerUtils.replaceferencesFileIds(answer, refFileMap);
-    
-        // Validate JSON only if it’s structured
-        try {
-            JsonNode validated = objectMapper.readTree(answer);
-            answer = objectMapper.writeValueAsString(validated);
-        } catch (Exception e) {
-            System.out.println("Answer is not valid JSON: " + e.getMessage());
+        Message message = storeAnswer(discussion.did(), referenceResolver.parse(discussion.projectId(), answer));
+        if (cacheableQuestion != null) {
+            answerCache.put(discussion.projectId(), cacheableQuestion, message.message(), System.currentTimeMillis()-started);
         }
-    
-        // Clean up special chars
-        answer = answer.replaceAll("[\\p{Cc}&&[^\r\n\t]]", "");
-    
-        Message message = messageRepository.addMessage(
-            new MessageCreateRequest(did, Roles.assistant.toString(), answer)
-        );
-        return ResponseEntity.ok(message);
+        return message;
+    }
+
+    /**
+     * Same as answer-question but the answer is sent as server sent events while the run produces it:
+     * "token" events carry the text deltas as json strings, the final "message" event carries the stored Message.
+     */
+    @PostMapping(value = "/{did}/answer-question/stream", produces = "text/event-stream")
+    public SseEmitter answerQuestionStream(@PathVariable int did) {
+        Discussion discussion = metadataCache.getDiscussion(did);
+        Assistant assistant = metadataCache.getAssistant(discussion.projectId());
+        Map<Types, OaiThread> threadMap = metadataCache.getThreads(did);
+        OaiThread thread = threadMap.get(Types.code);
+        SseEmitter emitter = new SseEmitter(0L);
+        streamExecutor.execute(() -> {
+            try {
+                List<HistoryMessage> messages = latestMessages(did);
+                String cacheableQuestion = cacheableQuestion(messages);
+                String direct = answerWithoutRun(discussion, lastQuestion(messages), cacheableQuestion);
+                if (direct != null) {
+                    emitter.send(SseEmitter.event().name("message").data(storeDirectAnswer(discussion, thread, direct)));
+                    emitter.complete();
+                    return;
+                }
+                long started = System.currentTimeMillis();
+                questionRouter.prepareThread(discussion.projectId(), assistant.oaiAid(), thread.oaiThreadId(), lastQuestion(messages));
+                OaiRunStream runStream = new OaiRunStream(httpClient, assistant.oaiAid(), thread.oaiThreadId());
+                System.out.println("Streaming OpenAi run on thread " + thread.oaiThreadId() + "...");
+                StreamedAnswer streamed = runStream.run(
+                    delta -> sendToken(emitter, delta)
+                );
+                Message message = storeAnswer(did, referenceResolver.parse(discussion.projectId(), streamed.message()));
+                if (cacheableQuestion != null) {
+                    answerCache.put(discussion.projectId(), cacheableQuestion, message.message(), System.currentTimeMillis()-started);
+                }
+                emitter.send(SseEmitter.event().name("message").data(message));
+                emitter.complete();
+            } catch (Exception e) {
+                System.out.println("exception in answerQuestionStream: " + e.getMessage());
+                e.printStackTrace();
+                emitter.completeWithError(e);
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * ask-question and answer-question/stream in one call. The user message is stored while the excerpts
+     * are retrieved and the run is started, the run adds the question to the thread itself and its stream
+     * carries the final message, so no message is created, listed or retrieved separately.
+     * Events: "question" with the stored user Message, then "token" and "message" as answer-question/stream.
+     */
+    @PostMapping(value = "/ask-and-answer", produces = "text/event-stream")
+    public SseEmitter askAndAnswer(@RequestBody MessageCreateRequest request) {
+        SseEmitter emitter = new SseEmitter(0L);
+        streamExecutor.execute(() -> {
+            try {
+                int did = request.did();
+                Discussion discussion = metadataCache.getDiscussion(did);
+                Assistant assistant = metadataCache.getAssistant(discussion.projectId());
+                OaiThread thread = metadataCache.getThreads(did).get(Types.code);
+                // Read before the question is stored: it opens the discussion when there is nothing yet
+                String cacheableQuestion = answerCache.isEnabled()
+                    && !historyRepository.hasMessages(did) ? request.message() : null;
+                CompletableFuture<Message> stored = CompletableFuture.supplyAsync(
+                    () -> messageRepository.addMessage(request), streamExecutor
+                );
+                AtomicBoolean questionSent = new AtomicBoolean();
+                String direct = answerWithoutRun(discussion, request.message(), cacheableQuestion);
+                if (direct != null) {
+                    new OaiMessageService(thread.oaiThreadId()).createMessage(Roles.user, request.message());
+                    sendQuestion(emitter, stored, questionSent);
+                    emitter.send(SseEmitter.event().name("message").data(storeDirectAnswer(discussion, thread, direct)));
+                    emitter.complete();
+                    return;
+                }
+                long started = System.currentTimeMillis();
+                String question = withContext(discussion.projectId(), request.message());
+                questionRouter.prepareThread(discussion.projectId(), assistant.oaiAid(), thread.oaiThreadId(), request.message());
+                OaiRunStream runStream = new OaiRunStream(httpClient, assistant.oaiAid(), thread.oaiThreadId());
+                System.out.println("Streaming OpenAi run on thread " + thread.oaiThreadId() + "...");
+                StreamedAnswer streamed = runStream.run(question, delta -> {
+                    sendQuestion(emitter, stored, questionSent);
+                    sendToken(emitter, delta);
+                });
+                sendQuestion(emitter, stored, questionSent);
+                Message message = storeAnswer(did, referenceResolver.parse(discussion.projectId(), streamed.message()));
+                if (cacheableQuestion != null) {
+                    answerCache.put(discussion.projectId(), cacheableQuestion, message.message(), System.currentTimeMillis()-started);
+                }
+                emitter.send(SseEmitter.event().name("message").data(message));
+                emitter.complete();
+            } catch (Exception e) {
+                System.out.println("exception in askAndAnswer: " + e.getMessage());
+                e.printStackTrace();
+                emitter.completeWithError(e);
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * Answer the question from the symbol index when it only asks where something is defined,
+     * or from the answer cache.
+     * @return the answer, null when the question needs a run
+     */
+    private String answerWithoutRun(Discussion discussion, String question, String cacheableQuestion) throws IOException {
+        if (question == null) {
+            return null;
+        }
+        String answer = null;
+        if (symbolIndexService.isShortCircuitEnabled()) {
+            answer = symbolIndexService.answerNavigation(discussion.projectId(), question);
+        }
+        if (answer == null && cacheableQuestion != null) {
+            answer = answerCache.get(discussion.projectId(), cacheableQuestion);
+        }
+        if (answer != null) {
+            System.out.println("Question of discussion " + discussion.did() + " answered without a run");
+        }
+        return answer;
+    }
+
+    private Message storeDirectAnswer(Discussion discussion, OaiThread thread, String answer) throws IOException {
+        // The thread gets the answer too so the next runs see the whole conversation
+        new OaiMessageService(thread.oaiThreadId()).createMessage(Roles.assistant, answer);
+        return storeAnswer(discussion.did(), referenceResolver.parse(discussion.projectId(), answer));
+    }
+
+    // Each answer completes a question, the summary is checked once per exchange
+    private Message storeAnswer(int did, Answer answer) throws JsonProcessingException {
+        String json = objectMapper.writeValueAsString(answer);
+        // The answer goes on the row just inserted, in the same transaction
+        Message message = transactionTemplate.execute(status -> {
+            Message added = messageRepository.addMessage(
+                new MessageCreateRequest(did, Roles.assistant.toString(), json)
+            );
+            historyRepository.setAnswer(added.msgId(), json);
+            return added;
+        });
+        summaryService.messagesAdded(did);
+        return message;
+    }
+
+    /**
+     * @return the two latest messages, newest first: enough for the question and cacheableQuestion()
+     */
+    private List<HistoryMessage> latestMessages(int did) {
+        return historyRepository.getHistoryBefore(did, null, 2);
+    }
+
+    private static String lastQuestion(List<HistoryMessage> latest) {
+        return latest.isEmpty() ? null : latest.get(0).message();
+    }
+
+    /**
+     * The question as sent to the assistant, preceded by the local retrieval excerpts when it is enabled.
+     */
+    private String withContext(int projectId, String question) throws IOException {
+        if (!localRetrievalService.isEnabled()) {
+            return question;
+        }
+        // Only the assistant sees the excerpts, the stored message stays the user question
+        String context = localRetrievalService.buildContext(projectId, question, contextChunks);
+        return context.isEmpty() ? question : context + "\nQuestion:\n" + question;
+    }
+
+    // Json encoded: the data line drops the leading space of a raw token
+    private void sendToken(SseEmitter emitter, String delta) throws IOException {
+        emitter.send(SseEmitter.event().name("token").data(objectMapper.writeValueAsString(delta)));
+    }
+
+    private static void sendQuestion(
+        SseEmitter emitter, CompletableFuture<Message> stored, AtomicBoolean sent
+    ) throws IOException {
+        if (sent.compareAndSet(false, true)) {
+            emitter.send(SseEmitter.event().name("question").data(stored.join()));
+        }
+    }
+
+    /**
+     * @return the question when it opens the discussion, null otherwise:
+     * later questions depend on the previous answers so they are not cached
+     */
+    private String cacheableQuestion(List<HistoryMessage> latest) {
+        return answerCache.isEnabled() && latest.size() == 1 ? latest.get(0).message() : null;
+    }
+
+    @GetMapping("/answer-cache/stats")
+    public ResponseEntity<CacheStats> getAnswerCacheStats() {
+        return ResponseEntity.ok(answerCache.stats());
     }
 
     @GetMapping("/{did}")
     public ResponseEntity<Discussion> getDiscussion(@PathVariable int did) {
-        return ResponseEntity.ok(discussionRepository.getDiscussionById(did));
+        return ResponseEntity.ok(metadataCache.getDiscussion(did));
+    }
+
+    /**
+     * The discussions of the project newest first, pass the nextCursor of a page as before to get the next one.
+     */
+    @GetMapping("/project/{projectId}/page")
+    public ResponseEntity<Page<Discussion>> getDiscussionsPage(
+        @PathVariable int projectId,
+        @RequestParam(required = false) Integer before,
+        @RequestParam(defaultValue = "50") int limit
+    ) {
+        return ResponseEntity.ok(historyRepository.getDiscussionsBefore(projectId, before, pageSize(limit)));
+    }
+
+    /**
+     * The latest messages of the discussion in chronological order,
+     * pass the nextCursor of a page as before to get the older ones.
+     */
+    @GetMapping("/{did}/messages")
+    public ResponseEntity<Page<Message>> getMessagesPage(
+        @PathVariable int did,
+        @RequestParam(required = false) Integer before,
+        @RequestParam(defaultValue = "50") int limit
+    ) {
+        return ResponseEntity.ok(historyRepository.getMessagesBefore(did, before, pageSize(limit)));
+    }
+
+    /**
+     * The typed answer of an assistant message, 404 for questions and answers stored before typed answers.
+     */
+    @GetMapping("/messages/{msgId}/answer")
+    public ResponseEntity<Answer> getAnswer(@PathVariable int msgId) throws IOException {
+        String answer = historyRepository.getAnswer(msgId);
+        if (answer == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(objectMapper.readValue(answer, Answer.class));
     }
 
-    @GetMapping("/project/{projectId}")
-    public ResponseEntity<List<Discussion>> getDiscussionsByProject(@PathVariable int projectId) {
-        return ResponseEntity.ok(discussionRepository.getAllDiscussionsByProjectId(projectId));
+    private static int pageSize(int limit) {
+        return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
     }
 
     @PutMapping("/{did}")
     public ResponseEntity<Discussion> updateDiscussion(@PathVariable int did, @RequestBody DiscussionUpdateRequest updateRequest) {
         Discussion discussion=discussionRepository.updateDiscussion(updateRequest);
+        metadataCache.invalidateDiscussion(did);
         return ResponseEntity.ok(discussion);
     }
 
@@ -161,9 +487,7 @@ public class DiscussionController {
             """,
             1f
         );
-        List<Message> messages=messageRepository.getAllMessagesByDiscussionId(did);
-        String json=objectMapper.writeValueAsString(messages);
-        chatService.addMessage("user", json);
+        chatService.addMessage("user", summaryService.getContext(did, suggestBudget));
         String answer=chatService.answer();
         String jsonResponse=answer.substring(answer.indexOf("```json")+7, answer.lastIndexOf("```"));
         DiscussionNameSuggestion[] suggestions = objectMapper.readValue(jsonResponse, DiscussionNameSuggestion[].class);
@@ -174,6 +498,8 @@ public class DiscussionController {
     @DeleteMapping("/{did}")
     public ResponseEntity<Void> deleteDiscussion(@PathVariable int did) {
         discussionRepository.deleteDiscussion(did);
+        summaryService.deleteSummary(did);
+        metadataCache.invalidateDiscussion(did);
         return ResponseEntity.ok().build();
     }
 }
@@ -0,0 +1,227 @@
+package com.unbumpkin.codechat.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.model.Discussion;
+import com.unbumpkin.codechat.model.openai.Assistant;
+import com.unbumpkin.codechat.model.openai.OaiThread;
+import com.unbumpkin.codechat.repository.DiscussionRepository;
+import com.unbumpkin.codechat.repository.openai.AssistantRepository;
+import com.unbumpkin.codechat.repository.openai.OaiThreadRepository;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Read-through cache of the discussions, the assistant of each project and the threads of each discussion,
+ * read on every question but almost never written. Whoever writes them invalidates the entries here;
+ * with codechat.metadata-cache.notify the invalidations are sent to the other nodes with postgres notify.
+ */
+@Service
+public class DiscussionMetadataCache {
+    private static final String CHANNEL = "codechat_metadata_cache";
+    // How long the listener waits for notifications before checking it should stop
+    private static final int LISTEN_TIMEOUT_MS = 10_000;
+    private static final long RECONNECT_DELAY_MS = 5_000;
+
+    @Autowired
+    private DiscussionRepository discussionRepository;
+    @Autowired
+    private AssistantRepository assistantRepository;
+    @Autowired
+    private OaiThreadRepository threadRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${codechat.metadata-cache.max-size:10000}")
+    private int maxSize;
+    @Value("${codechat.metadata-cache.notify:false}")
+    private boolean notify;
+
+    private final Map<Integer,Discussion> discussions = lru();
+    // By project id
+    private final Map<Integer,Assistant> assistants = lru();
+    // By discussion id
+    private final Map<Integer,Map<Types,OaiThread>> threads = lru();
+    // Incremented by each invalidation, a value loaded meanwhile is not cached
+    private final AtomicLong generation = new AtomicLong();
+    // Ignore our own notifications
+    private final String nodeId = UUID.randomUUID().toString();
+    private volatile boolean listening;
+    private Thread listener;
+
+    public Discussion getDiscussion(int did) {
+        return get(discussions, did, discussionRepository::getDiscussionById);
+    }
+
+    public Assistant getAssistant(int projectId) {
+        return get(assistants, projectId, assistantRepository::getAssistantByProjectId);
+    }
+
+    public Map<Types,OaiThread> getThreads(int did) {
+        return get(threads, did, id -> {
+            Map<Types,OaiThread> threadMap = threadRepository.getAllThreadsByDiscussionId(id);
+            return threadMap == null ? null : Map.copyOf(threadMap);
+        });
+    }
+
+    /**
+     * The discussion was created, updated or deleted, or its threads changed.
+     */
+    public void invalidateDiscussion(int did) {
+        evictDiscussion(did);
+        publish("discussion:"+did);
+    }
+
+    /**
+     * The project was deleted or its assistant replaced.
+     */
+    public void invalidateProject(int projectId) {
+        evictProject(projectId);
+        publish("project:"+projectId);
+    }
+
+    public void invalidateAll() {
+        evictAll();
+        publish("all");
+    }
+
+    @PostConstruct
+    void startListener() {
+        if (!notify) {
+            return;
+        }
+        listening = true;
+        listener = Thread.ofVirtual().name("metadata-cache-listener").start(this::listen);
+    }
+
+    @PreDestroy
+    void stopListener() {
+        listening = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+
+    private <V> V get(Map<Integer,V> cache, int key, Function<Integer,V> loader) {
+        V value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        long loadedGeneration = generation.get();
+        value = loader.apply(key);
+        // Not found is not cached, the row may be created right after
+        if (value != null) {
+            synchronized (cache) {
+                if (generation.get() == loadedGeneration) {
+                    cache.put(key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    private void evictDiscussion(int did) {
+        generation.incrementAndGet();
+        discussions.remove(did);
+        threads.remove(did);
+    }
+
+    private void evictProject(int projectId) {
+        generation.incrementAndGet();
+        assistants.remove(projectId);
+        synchronized (discussions) {
+            discussions.values().removeIf(discussion -> discussion.projectId() == projectId);
+        }
+        // Not indexed by project
+        threads.clear();
+    }
+
+    private void evictAll() {
+        generation.incrementAndGet();
+        discussions.clear();
+        assistants.clear();
+        threads.clear();
+    }
+
+    private void publish(String event) {
+        if (notify) {
+            jdbcTemplate.queryForList("select pg_notify(?, ?)", CHANNEL, nodeId+" "+event);
+        }
+    }
+
+    private void listen() {
+        while (listening) {
+            try (Connection connection = dataSource.getConnection()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("listen "+CHANNEL);
+                }
+                // What was sent while not listening is lost
+                evictAll();
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (listening) {
+                    PGNotification[] notifications = pgConnection.getNotifications(LISTEN_TIMEOUT_MS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            apply(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!listening) {
+                    return;
+                }
+                System.out.println("Metadata cache listener failed, reconnecting: "+e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(String payload) {
+        int space = payload.indexOf(' ');
+        if (space < 0 || payload.substring(0, space).equals(nodeId)) {
+            return;
+        }
+        String event = payload.substring(space+1);
+        int colon = event.indexOf(':');
+        String kind = colon < 0 ? event : event.substring(0, colon);
+        switch (kind) {
+            case "discussion" -> evictDiscussion(Integer.parseInt(event.substring(colon+1)));
+            case "project" -> evictProject(Integer.parseInt(event.substring(colon+1)));
+            default -> evictAll();
+        }
+    }
+
+    private <V> Map<Integer,V> lru() {
+        return Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer,V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package com.unbumpkin.codechat.repository;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Rows of core.discussionsummary, one rolling summary per discussion.
+ */
+@Repository
+public class DiscussionSummaryRepository {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * @param lastMsgId last message folded in the summary
+     */
+    public record DiscussionSummary(int did, String summary, int lastMsgId) {}
+
+    /**
+     * @return the summary, null when the discussion has none yet
+     */
+    public DiscussionSummary getSummary(int did) {
+        List<DiscussionSummary> summaries = jdbcTemplate.query(
+            "select did, summary, lastmsgid from core.discussionsummary where did=?",
+            (rs, rowNum) -> new DiscussionSummary(rs.getInt("did"), rs.getString("summary"), rs.getInt("lastmsgid")),
+            did
+        );
+        return summaries.isEmpty() ? null : summaries.get(0);
+    }
+
+    public void saveSummary(DiscussionSummary summary) {
+        jdbcTemplate.update("""
+            insert into core.discussionsummary (did, summary, lastmsgid) values (?, ?, ?)
+            on conflict (did) do update set summary=excluded.summary, lastmsgid=excluded.lastmsgid, updated=now()
+            """, summary.did(), summary.summary(), summary.lastMsgId()
+        );
+    }
+
+    public void deleteSummary(int did) {
+        jdbcTemplate.update("delete from core.discussionsummary where did=?", did);
+    }
+}
@@ -0,0 +1,188 @@
+package com.unbumpkin.codechat.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.repository.DiscussionSummaryRepository;
+import com.unbumpkin.codechat.repository.DiscussionSummaryRepository.DiscussionSummary;
+import com.unbumpkin.codechat.repository.MessageHistoryRepository;
+import com.unbumpkin.codechat.repository.MessageHistoryRepository.HistoryMessage;
+import com.unbumpkin.codechat.service.openai.ChatService;
+import com.unbumpkin.codechat.service.openai.BaseOpenAIClient.Models;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Bounded context of a discussion: a rolling summary of its older messages and its latest messages.
+ * Once the messages left out of the summary pass fold-threshold tokens, the oldest of them are folded
+ * into the summary in the background, the latest keep-recent tokens stay as they are.
+ * The cost of getContext() depends on its budget, not on the length of the discussion.
+ */
+@Service
+public class DiscussionSummaryService {
+    // Rough size of a token in english text and code
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int PAGE_SIZE = 50;
+    // Messages read by a single fold
+    private static final int MAX_FOLDED_MESSAGES = 200;
+    // Longest message in the prompt of a fold
+    private static final int MAX_FOLDED_MESSAGE_TOKENS = 1000;
+
+    @Autowired
+    private MessageHistoryRepository historyRepository;
+    @Autowired
+    private DiscussionSummaryRepository summaryRepository;
+
+    @Value("${codechat.summary.enabled:true}")
+    private boolean enabled;
+    @Value("${codechat.summary.fold-threshold:3000}")
+    private int foldThreshold;
+    @Value("${codechat.summary.keep-recent:1000}")
+    private int keepRecent;
+    @Value("${codechat.summary.max-words:250}")
+    private int maxWords;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // Discussions being folded, one fold at a time per discussion
+    private final Set<Integer> folding = ConcurrentHashMap.newKeySet();
+
+    public static int estimateTokens(String text) {
+        return (text.length()+CHARS_PER_TOKEN-1)/CHARS_PER_TOKEN;
+    }
+
+    /**
+     * Call after messages are stored, folds the older messages in the background when enough piled up.
+     */
+    public void messagesAdded(int did) {
+        // A fold in progress is not queued again, the next message checks the threshold anew
+        if (!enabled || !folding.add(did)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                fold(did);
+            } catch (Exception e) {
+                System.out.println("Summary of discussion "+did+" not updated: "+e.getMessage());
+            } finally {
+                folding.remove(did);
+            }
+        });
+    }
+
+    /**
+     * The summary then the latest messages that fit in the budget, as "role: message" lines.
+     * The messages are read newest first and the oldest one that does not fit is cut.
+     */
+    public String getContext(int did, int tokenBudget) {
+        DiscussionSummary summary = enabled ? summaryRepository.getSummary(did) : null;
+        int budget = tokenBudget;
+        String summaryText = null;
+        if (summary != null) {
+            summaryText = truncate(summary.summary(), budget);
+            budget -= estimateTokens(summaryText);
+        }
+        Deque<String> recent = new ArrayDeque<>();
+        Integer before = null;
+        read:
+        while (budget > 0) {
+            List<HistoryMessage> page = historyRepository.getHistoryBefore(did, before, PAGE_SIZE);
+            for (HistoryMessage message : page) {
+                if (summary != null && message.msgId() <= summary.lastMsgId()) {
+                    break read;
+                }
+                String line = message.role()+": "+message.message();
+                int tokens = estimateTokens(line);
+                if (tokens > budget) {
+                    recent.addFirst(truncate(line, budget));
+                    break read;
+                }
+                recent.addFirst(line);
+                budget -= tokens;
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+            before = page.get(page.size()-1).msgId();
+        }
+        StringBuilder context = new StringBuilder();
+        if (summaryText != null) {
+            context.append("Summary of the earlier messages:\n").append(summaryText).append("\n\nLatest messages:\n");
+        }
+        for (String line : recent) {
+            context.append(line).append('\n');
+        }
+        return context.toString();
+    }
+
+    public void deleteSummary(int did) {
+        summaryRepository.deleteSummary(did);
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdown();
+    }
+
+    private void fold(int did) throws Exception {
+        DiscussionSummary summary = summaryRepository.getSummary(did);
+        List<HistoryMessage> pending = historyRepository.getHistoryAfter(
+            did, summary == null ? 0 : summary.lastMsgId(), MAX_FOLDED_MESSAGES
+        );
+        int total = 0;
+        for (HistoryMessage message : pending) {
+            total += estimateTokens(message.message());
+        }
+        if (total < foldThreshold) {
+            return;
+        }
+        // The latest messages stay out of the summary, getContext() sends them as they are
+        int end = pending.size();
+        int kept = 0;
+        while (end > 0 && kept+estimateTokens(pending.get(end-1).message()) <= keepRecent) {
+            kept += estimateTokens(pending.get(end-1).message());
+            end--;
+        }
+        if (end == 0) {
+            return;
+        }
+        List<HistoryMessage> folded = pending.subList(0, end);
+        String text = summarize(summary == null ? null : summary.summary(), folded);
+        summaryRepository.saveSummary(new DiscussionSummary(did, text, folded.get(folded.size()-1).msgId()));
+        System.out.println(folded.size()+" messages of discussion "+did+" folded into its summary");
+    }
+
+    private String summarize(String previous, List<HistoryMessage> messages) throws Exception {
+        ChatService chatService = new ChatService(
+            Models.gpt_4o,
+            """
+            You maintain the summary of a discussion between a developer and an assistant about a software project.
+            You get the current summary, possibly empty, and the messages that followed it.
+            Answer with the updated summary only, in at most %d words: the topics, the files and code elements
+            discussed, the decisions and the open questions. Drop what the later messages made obsolete.
+            """.formatted(maxWords),
+            0.3f
+        );
+        StringBuilder prompt = new StringBuilder("Current summary:\n");
+        prompt.append(previous == null ? "(none)" : previous).append("\n\nMessages:\n");
+        for (HistoryMessage message : messages) {
+            prompt.append(message.role()).append(": ")
+                .append(truncate(message.message(), MAX_FOLDED_MESSAGE_TOKENS)).append('\n');
+        }
+        chatService.addMessage("user", prompt.toString());
+        return chatService.answer().trim();
+    }
+
+    private static String truncate(String text, int tokens) {
+        int maxChars = Math.max(0, tokens)*CHARS_PER_TOKEN;
+        return text.length() <= maxChars ? text : text.substring(0, maxChars);
+    }
+}
@@ -0,0 +1,23 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns text into vectors for the local retrieval.
+ * The implementation is chosen with codechat.retrieval.embedder, vectors must be L2 normalized.
+ */
+public interface Embedder {
+    int dimensions();
+
+    float[] embed(String text) throws IOException;
+
+    default List<float[]> embedAll(List<String> texts) throws IOException {
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            vectors.add(embed(text));
+        }
+        return vectors;
+    }
+}
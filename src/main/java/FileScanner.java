@@ -0,0 +1,104 @@
+package com.unbumpkin.codechat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Counts the lines of a file and hashes its content in the same pass.
+ * Large files are read through memory mapped regions, small ones through a per thread buffer,
+ * so no buffer is allocated per file.
+ */
+public final class FileScanner {
+    // Below this size mapping costs more than reading
+    private static final int MMAP_THRESHOLD = 64*1024;
+    private static final long REGION_SIZE = 256L*1024*1024;
+    private static final long NEW_LINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private static final ThreadLocal<ByteBuffer> SMALL_BUFFER = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocate(MMAP_THRESHOLD).order(ByteOrder.nativeOrder())
+    );
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    /**
+     * @param lineCount number of lines, a last line without a new line counts
+     * @param contentHash hex SHA-256 of the content
+     */
+    public record FileScan(long size, int lineCount, String contentHash) {}
+
+    private FileScanner() {}
+
+    public static FileScan scan(Path path) throws IOException {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long newLines = 0;
+            byte last = '\n';
+            if (size < MMAP_THRESHOLD) {
+                ByteBuffer buffer = SMALL_BUFFER.get().clear();
+                // The size can change while reading, stop at end of file or when the buffer is full
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {}
+                buffer.flip();
+                size = buffer.limit();
+                if (size > 0) {
+                    newLines = countNewLines(buffer);
+                    last = buffer.get(buffer.limit()-1);
+                    digest.update(buffer);
+                }
+            } else {
+                for (long position = 0; position < size; position += REGION_SIZE) {
+                    MappedByteBuffer region = channel.map(
+                        MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size-position)
+                    );
+                    region.order(ByteOrder.nativeOrder());
+                    newLines += countNewLines(region);
+                    last = region.get(region.limit()-1);
+                    digest.update(region);
+                }
+            }
+            long lineCount = last == '\n' ? newLines : newLines+1;
+            return new FileScan(size, (int) Math.min(lineCount, Integer.MAX_VALUE), HexFormat.of().formatHex(digest.digest()));
+        }
+    }
+
+    public static int countLines(Path path) throws IOException {
+        return scan(path).lineCount();
+    }
+
+    /**
+     * Count the '\n' between position and limit, 8 bytes at a time, without moving the position.
+     */
+    static long countNewLines(ByteBuffer buffer) {
+        int i = buffer.position();
+        int limit = buffer.limit();
+        long count = 0;
+        for (; i+8 <= limit; i += 8) {
+            // Bytes equal to '\n' become 0, then the high bit of each zero byte is set, exact without carries
+            long x = buffer.getLong(i) ^ NEW_LINES;
+            long zeros = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+            count += Long.bitCount(zeros);
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,88 @@
+package com.unbumpkin.codechat.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Deterministic local embedder: identifiers are split on camel case and underscores,
+ * each word and pair of consecutive words is hashed to a signed dimension.
+ * No network and no model, the same text always gives the same vector, meant for tests and offline use.
+ */
+@Service
+@ConditionalOnProperty(name = "codechat.retrieval.embedder", havingValue = "hashing", matchIfMissing = true)
+public class HashingEmbedder implements Embedder {
+    // Same size as core.chunk.embedding
+    public static final int DIMENSIONS = 768;
+
+    @Override
+    public int dimensions() {
+        return DIMENSIONS;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[DIMENSIONS];
+        List<String> words = words(text);
+        String previous = null;
+        for (String word : words) {
+            add(vector, word, 1f);
+            if (previous != null) {
+                add(vector, previous+" "+word, 0.5f);
+            }
+            previous = word;
+        }
+        double norm = 0;
+        for (float v : vector) {
+            norm += v*v;
+        }
+        if (norm > 0) {
+            float inverse = (float) (1/Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= inverse;
+            }
+        }
+        return vector;
+    }
+
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        char previous = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean camelBoundary = Character.isUpperCase(c) && Character.isLowerCase(previous);
+            if (!Character.isLetterOrDigit(c) || camelBoundary) {
+                addWord(words, word);
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            }
+            previous = c;
+        }
+        addWord(words, word);
+        return words;
+    }
+
+    private static void addWord(List<String> words, StringBuilder word) {
+        if (word.length() > 1) {
+            words.add(word.toString().toLowerCase(Locale.ROOT));
+        }
+        word.setLength(0);
+    }
+
+    private static void add(float[] vector, String feature, float weight) {
+        // FNV-1a over the UTF-8 bytes, the top bit gives the sign
+        int hash = 0x811c9dc5;
+        for (byte b : feature.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        int index = Math.floorMod(hash, DIMENSIONS);
+        vector[index] += (hash & 0x80000000) == 0 ? weight : -weight;
+    }
+}
@@ -0,0 +1,308 @@
+package com.unbumpkin.codechat.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory HNSW graph for approximate nearest neighbor search.
+ * Vectors are expected L2 normalized, the score is the cosine similarity.
+ * Removed vectors are only marked deleted, they keep routing searches until the index is rebuilt.
+ */
+public class HnswIndex {
+    private static final int M = 16;
+    private static final int M0 = 2*M;
+    private static final double LEVEL_FACTOR = 1/Math.log(M);
+
+    private final int dimensions;
+    private final int efConstruction;
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<Integer,Integer> nodeById = new HashMap<>();
+    // Seeded so the same inserts build the same graph
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int deletedCount;
+
+    public record Match(int id, float score) {}
+
+    private record Candidate(int node, float distance) {}
+
+    private static class Node {
+        final int id;
+        final float[] vector;
+        final int[][] links;
+        final int[] linkCounts;
+        boolean deleted;
+
+        Node(int id, float[] vector, int level) {
+            this.id = id;
+            this.vector = vector;
+            this.links = new int[level+1][];
+            this.linkCounts = new int[level+1];
+            for (int l = 0; l <= level; l++) {
+                links[l] = new int[l == 0 ? M0 : M];
+            }
+        }
+    }
+
+    public HnswIndex(int dimensions, int efConstruction) {
+        this.dimensions = dimensions;
+        this.efConstruction = efConstruction;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Add a vector, a vector already indexed with the same id is replaced.
+     */
+    public void add(int id, float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Vector of "+vector.length+" dimensions, expected "+dimensions);
+        }
+        lock.writeLock().lock();
+        try {
+            markDeleted(id);
+            int level = (int) (-Math.log(1-random.nextDouble())*LEVEL_FACTOR);
+            int index = nodes.size();
+            Node node = new Node(id, vector, level);
+            nodes.add(node);
+            nodeById.put(id, index);
+            if (entryPoint < 0) {
+                entryPoint = index;
+                maxLevel = level;
+                return;
+            }
+            int nearest = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                nearest = greedySearch(vector, nearest, l);
+            }
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                List<Candidate> found = searchLayer(vector, nearest, efConstruction, l);
+                List<Candidate> neighbors = selectNeighbors(found, M);
+                for (Candidate neighbor : neighbors) {
+                    node.links[l][node.linkCounts[l]++] = neighbor.node();
+                }
+                for (Candidate neighbor : neighbors) {
+                    link(neighbor.node(), index, neighbor.distance(), l);
+                }
+                nearest = found.get(0).node();
+            }
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = index;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the id was indexed
+     */
+    public boolean remove(int id) {
+        lock.writeLock().lock();
+        try {
+            return markDeleted(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param ef size of the dynamic candidate list, higher is more accurate and slower
+     * @return the k closest vectors, best first
+     */
+    public List<Match> search(float[] query, int k, int ef) {
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0 || k <= 0) {
+                return List.of();
+            }
+            int nearest = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                nearest = greedySearch(query, nearest, l);
+            }
+            List<Candidate> found = searchLayer(query, nearest, Math.max(ef, k), 0);
+            List<Match> matches = new ArrayList<>(k);
+            for (Candidate candidate : found) {
+                Node node = nodes.get(candidate.node());
+                if (!node.deleted) {
+                    matches.add(new Match(node.id, 1-candidate.distance()));
+                    if (matches.size() == k) {
+                        break;
+                    }
+                }
+            }
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of removed vectors still in the graph
+     */
+    public int deletedCount() {
+        lock.readLock().lock();
+        try {
+            return deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean markDeleted(int id) {
+        Integer index = nodeById.remove(id);
+        if (index == null) {
+            return false;
+        }
+        nodes.get(index).deleted = true;
+        deletedCount++;
+        return true;
+    }
+
+    private int greedySearch(float[] query, int start, int level) {
+        int current = start;
+        float currentDistance = distance(query, nodes.get(current).vector);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Node node = nodes.get(current);
+            for (int i = 0; i < node.linkCounts[level]; i++) {
+                int neighbor = node.links[level][i];
+                float d = distance(query, nodes.get(neighbor).vector);
+                if (d < currentDistance) {
+                    current = neighbor;
+                    currentDistance = d;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return up to ef nodes of the layer closest to the query, closest first
+     */
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int level) {
+        BitSet visited = new BitSet(nodes.size());
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distance));
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(Candidate::distance).reversed());
+        Candidate first = new Candidate(start, distance(query, nodes.get(start).vector));
+        visited.set(start);
+        candidates.add(first);
+        results.add(first);
+        while (!candidates.isEmpty()) {
+            Candidate closest = candidates.poll();
+            if (closest.distance() > results.peek().distance() && results.size() >= ef) {
+                break;
+            }
+            Node node = nodes.get(closest.node());
+            for (int i = 0; i < node.linkCounts[level]; i++) {
+                int neighbor = node.links[level][i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                float d = distance(query, nodes.get(neighbor).vector);
+                if (results.size() < ef || d < results.peek().distance()) {
+                    Candidate candidate = new Candidate(neighbor, d);
+                    candidates.add(candidate);
+                    results.add(candidate);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(Candidate::distance));
+        return sorted;
+    }
+
+    /**
+     * Keep a candidate only if it is closer to the base than to every kept one,
+     * so the links spread in all directions instead of all pointing to the same cluster.
+     * @param candidates sorted by distance to the base, closest first
+     */
+    private List<Candidate> selectNeighbors(List<Candidate> candidates, int max) {
+        List<Candidate> selected = new ArrayList<>(max);
+        for (Candidate candidate : candidates) {
+            if (selected.size() == max) {
+                break;
+            }
+            float[] vector = nodes.get(candidate.node()).vector;
+            boolean keep = true;
+            for (Candidate other : selected) {
+                if (distance(vector, nodes.get(other.node()).vector) < candidate.distance()) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected.add(candidate);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Link from to target, when from is full its links are selected again among the old ones and target.
+     */
+    private void link(int from, int target, float distance, int level) {
+        Node node = nodes.get(from);
+        int[] links = node.links[level];
+        int count = node.linkCounts[level];
+        if (count < links.length) {
+            links[count] = target;
+            node.linkCounts[level]++;
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<>(count+1);
+        candidates.add(new Candidate(target, distance));
+        for (int i = 0; i < count; i++) {
+            candidates.add(new Candidate(links[i], distance(node.vector, nodes.get(links[i]).vector)));
+        }
+        candidates.sort(Comparator.comparingDouble(Candidate::distance));
+        List<Candidate> selected = selectNeighbors(candidates, links.length);
+        for (int i = 0; i < selected.size(); i++) {
+            links[i] = selected.get(i).node();
+        }
+        node.linkCounts[level] = selected.size();
+    }
+
+    private static float distance(float[] a, float[] b) {
+        // Independent sums so the loop is not serialized on one accumulator
+        float dot0 = 0, dot1 = 0, dot2 = 0, dot3 = 0;
+        int i = 0;
+        for (; i+3 < a.length; i += 4) {
+            dot0 += a[i]*b[i];
+            dot1 += a[i+1]*b[i+1];
+            dot2 += a[i+2]*b[i+2];
+            dot3 += a[i+3]*b[i+3];
+        }
+        for (; i < a.length; i++) {
+            dot0 += a[i]*b[i];
+        }
+        return 1-(dot0+dot1+dot2+dot3);
+    }
+}
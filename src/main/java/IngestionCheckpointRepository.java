@@ -0,0 +1,144 @@
+package com.unbumpkin.codechat.repository;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+
+/**
+ * Per file progress of a project ingestion, see core.ingestioncheckpoint.
+ */
+@Repository
+public class IngestionCheckpointRepository {
+    private static final TypeReference<Map<String,String>> ATTRIBUTES_TYPE = new TypeReference<>() {};
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    public record Checkpoint(
+        String filePath, String oaiFileId, Types type, Map<String,String> attributes, boolean attached
+    ) {}
+
+    public record ProjectVectorStore(int vsId, String oaiVsId, Types type) {}
+
+    /**
+     * @return the checkpoints of the given paths, by path
+     */
+    public Map<String,Checkpoint> getCheckpoints(int prId, Collection<String> filePaths) {
+        Map<String,Checkpoint> checkpoints = new HashMap<>();
+        if (filePaths.isEmpty()) {
+            return checkpoints;
+        }
+        jdbcTemplate.query(connection -> {
+                Array paths = connection.createArrayOf("varchar", filePaths.toArray());
+                PreparedStatement ps = connection.prepareStatement("""
+                    select filepath, oai_f_id, type, attributes, attached from core.ingestioncheckpoint
+                    where prid=? and filepath = any(?)
+                    """);
+                ps.setInt(1, prId);
+                ps.setArray(2, paths);
+                return ps;
+            }, rs -> {
+                Checkpoint checkpoint = new Checkpoint(
+                    rs.getString("filepath"),
+                    rs.getString("oai_f_id"),
+                    Types.valueOf(rs.getString("type")),
+                    readAttributes(rs.getString("attributes")),
+                    rs.getBoolean("attached")
+                );
+                checkpoints.put(checkpoint.filePath(), checkpoint);
+            }
+        );
+        return checkpoints;
+    }
+
+    public void addCheckpoints(int projectId, int prId, List<Checkpoint> checkpoints) {
+        jdbcTemplate.batchUpdate("""
+            insert into core.ingestioncheckpoint (projectid, prid, filepath, oai_f_id, type, attributes, attached)
+            values (?, ?, ?, ?, ?, ?::jsonb, ?)
+            on conflict (prid, filepath) do update set
+                oai_f_id=excluded.oai_f_id, type=excluded.type, attributes=excluded.attributes, attached=excluded.attached
+            """, checkpoints, 500, (ps, checkpoint) -> {
+                ps.setInt(1, projectId);
+                ps.setInt(2, prId);
+                ps.setString(3, checkpoint.filePath());
+                ps.setString(4, checkpoint.oaiFileId());
+                ps.setString(5, checkpoint.type().name());
+                ps.setString(6, writeAttributes(checkpoint.attributes()));
+                ps.setBoolean(7, checkpoint.attached());
+            }
+        );
+    }
+
+    public void markAttached(int prId, Collection<String> filePaths) {
+        if (filePaths.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(
+                "update core.ingestioncheckpoint set attached=true where prid=? and filepath = any(?)"
+            );
+            ps.setInt(1, prId);
+            ps.setArray(2, connection.createArrayOf("varchar", filePaths.toArray()));
+            return ps;
+        });
+    }
+
+    public void deleteCheckpoints(int prId) {
+        jdbcTemplate.update("delete from core.ingestioncheckpoint where prid=?", prId);
+    }
+
+    /**
+     * The vector stores already created for the project, in creation order,
+     * so a resumed ingestion keeps the code, markup, config, all order.
+     */
+    public Map<Types,ProjectVectorStore> getProjectVectorStores(int projectId) {
+        Map<Types,ProjectVectorStore> stores = new LinkedHashMap<>();
+        jdbcTemplate.query(
+            "select vsid, oai_vs_id, type from core.vectorstore where projectid=? order by vsid",
+            rs -> {
+                Types type = Types.valueOf(rs.getString("type"));
+                stores.put(type, new ProjectVectorStore(rs.getInt("vsid"), rs.getString("oai_vs_id"), type));
+            },
+            projectId
+        );
+        return stores;
+    }
+
+    public boolean hasAssistant(int projectId) {
+        Integer count = jdbcTemplate.queryForObject(
+            "select count(*) from core.assistant where projectid=?", Integer.class, projectId
+        );
+        return count != null && count > 0;
+    }
+
+    private Map<String,String> readAttributes(String json) {
+        try {
+            return objectMapper.readValue(json, ATTRIBUTES_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Invalid checkpoint attributes: "+json, e);
+        }
+    }
+
+    private String writeAttributes(Map<String,String> attributes) {
+        try {
+            return objectMapper.writeValueAsString(attributes);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize checkpoint attributes", e);
+        }
+    }
+}
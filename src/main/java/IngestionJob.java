@@ -0,0 +1,33 @@
+package com.unbumpkin.codechat.model;
+
+import java.time.Instant;
+import java.util.Map;
+
+public record IngestionJob(
+    int jobId,
+    int projectId,
+    JobTypes type,
+    Statuses status,
+    Stages stage,
+    int progress,
+    int total,
+    String error,
+    Map<String,String> params,
+    Instant created,
+    Instant updated
+) {
+    public enum JobTypes {
+        create, refresh
+    }
+    public enum Statuses {
+        // superseded: a failed job retried by a newer one
+        queued, running, done, failed, superseded
+    }
+    public enum Stages {
+        clone, classify, upload, attach, assistant
+    }
+
+    public boolean isFinished() {
+        return status == Statuses.done || status == Statuses.failed || status == Statuses.superseded;
+    }
+}
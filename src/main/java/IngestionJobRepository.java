@@ -0,0 +1,151 @@
+package com.unbumpkin.codechat.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.unbumpkin.codechat.model.IngestionJob;
+import com.unbumpkin.codechat.model.IngestionJob.JobTypes;
+import com.unbumpkin.codechat.model.IngestionJob.Stages;
+import com.unbumpkin.codechat.model.IngestionJob.Statuses;
+
+@Repository
+public class IngestionJobRepository {
+    private static final TypeReference<Map<String,String>> PARAMS_TYPE = new TypeReference<>() {};
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * @param params what is needed to resume the job, must not contain credentials
+     * @param owner the instance running the job, see heartbeat
+     * @throws DuplicateKeyException when the project already has a queued or running job
+     */
+    public IngestionJob addJob(int projectId, JobTypes type, Map<String,String> params, String owner) throws JsonProcessingException {
+        String jsonParams = params == null ? null : objectMapper.writeValueAsString(params);
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(
+                "insert into core.ingestionjob (projectid, jobtype, params, owner, heartbeat) values (?, ?, ?::jsonb, ?, now())",
+                new String[] { "jobid" }
+            );
+            ps.setInt(1, projectId);
+            ps.setString(2, type.name());
+            ps.setString(3, jsonParams);
+            ps.setString(4, owner);
+            return ps;
+        }, keyHolder);
+        return getJobById(keyHolder.getKey().intValue());
+    }
+
+    public IngestionJob getJobById(int jobId) {
+        List<IngestionJob> jobs = jdbcTemplate.query(
+            "select * from core.ingestionjob where jobid=?", this::mapRow, jobId
+        );
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    public List<IngestionJob> getJobsByProjectId(int projectId) {
+        return jdbcTemplate.query(
+            "select * from core.ingestionjob where projectid=? order by created desc", this::mapRow, projectId
+        );
+    }
+
+    /**
+     * A job failed meanwhile, by the heartbeat check, is left failed.
+     */
+    public void updateProgress(int jobId, Statuses status, Stages stage, int progress, int total) {
+        jdbcTemplate.update("""
+            update core.ingestionjob set status=?, stage=?, progress=?, total=?, updated=now(), heartbeat=now()
+            where jobid=? and status in (?, ?)
+            """, status.name(), stage == null ? null : stage.name(), progress, total, jobId,
+            Statuses.queued.name(), Statuses.running.name()
+        );
+    }
+
+    public void fail(int jobId, String error) {
+        jdbcTemplate.update(
+            "update core.ingestionjob set status=?, error=?, updated=now() where jobid=?",
+            Statuses.failed.name(), error, jobId
+        );
+    }
+
+    /**
+     * Mark a failed job as retried, it cannot be retried again.
+     * @return false when the job is not failed
+     */
+    public boolean supersede(int jobId) {
+        return jdbcTemplate.update(
+            "update core.ingestionjob set status=?, updated=now() where jobid=? and status=?",
+            Statuses.superseded.name(), jobId, Statuses.failed.name()
+        ) > 0;
+    }
+
+    /**
+     * Keep the queued and running jobs of the instance alive.
+     */
+    public void heartbeat(String owner) {
+        jdbcTemplate.update(
+            "update core.ingestionjob set heartbeat=now() where owner=? and status in (?, ?)",
+            owner, Statuses.queued.name(), Statuses.running.name()
+        );
+    }
+
+    /**
+     * Fail the queued and running jobs whose instance stopped sending heartbeats,
+     * jobs from before the heartbeats are judged by their last update.
+     * @return the number of jobs failed
+     */
+    public int failExpired(Duration timeout, String error) {
+        return jdbcTemplate.update("""
+            update core.ingestionjob set status=?, error=?, updated=now()
+            where status in (?, ?) and coalesce(heartbeat, updated) < now() - make_interval(secs => ?)
+            """, Statuses.failed.name(), error, Statuses.queued.name(), Statuses.running.name(), timeout.toSeconds()
+        );
+    }
+
+    private IngestionJob mapRow(ResultSet rs, int rowNum) throws SQLException {
+        String stage = rs.getString("stage");
+        Timestamp created = rs.getTimestamp("created");
+        Timestamp updated = rs.getTimestamp("updated");
+        String params = rs.getString("params");
+        return new IngestionJob(
+            rs.getInt("jobid"),
+            rs.getInt("projectid"),
+            JobTypes.valueOf(rs.getString("jobtype")),
+            Statuses.valueOf(rs.getString("status")),
+            stage == null ? null : Stages.valueOf(stage),
+            rs.getInt("progress"),
+            rs.getInt("total"),
+            rs.getString("error"),
+            params == null ? null : readParams(params),
+            created == null ? null : created.toInstant(),
+            updated == null ? null : updated.toInstant()
+        );
+    }
+
+    private Map<String,String> readParams(String json) throws SQLException {
+        try {
+            return objectMapper.readValue(json, PARAMS_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new SQLException("Invalid job params: "+json, e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.unbumpkin.codechat.dto.request.CreateProjectRequest;
+import com.unbumpkin.codechat.model.IngestionJob;
+import com.unbumpkin.codechat.model.IngestionJob.JobTypes;
+import com.unbumpkin.codechat.model.IngestionJob.Stages;
+import com.unbumpkin.codechat.model.IngestionJob.Statuses;
+import com.unbumpkin.codechat.repository.IngestionJobRepository;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Runs create-project and refresh-repo in the background.
+ * The job row in core.ingestionjob is the source of truth for pollers,
+ * subscribers get every persisted change as a server sent event.
+ * A project has at most one queued or running job, a refresh or retry submitted meanwhile is refused.
+ * Each instance keeps the heartbeat of its jobs, any instance fails the jobs whose heartbeat expired:
+ * their instance stopped, they can be retried and the reaper can delete their projects.
+ */
+@Service
+public class IngestionJobService {
+    // Minimum delay between two progress writes inside a stage
+    private static final long PROGRESS_WRITE_INTERVAL_MS = 1000;
+
+    @Autowired
+    private IngestionJobRepository jobRepository;
+    @Autowired
+    private ProjectIngestionService ingestionService;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${codechat.ingestion.heartbeat-interval:30s}")
+    private Duration heartbeatInterval;
+    @Value("${codechat.ingestion.heartbeat-timeout:3m}")
+    private Duration heartbeatTimeout;
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final ExecutorService jobExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ingestion-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Integer,List<SseEmitter>> subscribers = new ConcurrentHashMap<>();
+
+    @FunctionalInterface
+    interface JobTask {
+        void run(JobProgress progress) throws Exception;
+    }
+
+    /**
+     * Progress of a running job, stage changes are always persisted,
+     * progress inside a stage at most once per PROGRESS_WRITE_INTERVAL_MS.
+     */
+    public class JobProgress {
+        private final int jobId;
+        private Stages stage;
+        private int progress;
+        private int total;
+        private long lastWrite;
+
+        JobProgress(int jobId) {
+            this.jobId = jobId;
+        }
+
+        public synchronized void stage(Stages stage, int total) {
+            this.stage = stage;
+            this.total = total;
+            this.progress = 0;
+            write(Statuses.running);
+        }
+
+        public synchronized void setProgress(int progress) {
+            this.progress = progress;
+            if (System.currentTimeMillis()-lastWrite >= PROGRESS_WRITE_INTERVAL_MS || progress >= total) {
+                write(Statuses.running);
+            }
+        }
+
+        public synchronized void advance() {
+            setProgress(progress+1);
+        }
+
+        private void write(Statuses status) {
+            lastWrite = System.currentTimeMillis();
+            jobRepository.updateProgress(jobId, status, stage, progress, total);
+            publish(jobId);
+        }
+
+        private synchronized void done() {
+            progress = total;
+            write(Statuses.done);
+        }
+    }
+
+    @PostConstruct
+    void start() {
+        heartbeat.scheduleWithFixedDelay(this::beat, 0, heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        heartbeat.shutdownNow();
+    }
+
+    private void beat() {
+        try {
+            jobRepository.heartbeat(instanceId);
+            int orphaned = jobRepository.failExpired(heartbeatTimeout, "Interrupted, its server stopped");
+            if (orphaned > 0) {
+                System.out.println(orphaned+" ingestion jobs of stopped servers marked as failed");
+            }
+        } catch (Exception e) {
+            // An exception escaping the task would cancel the next runs
+            System.out.println("Ingestion heartbeat failed: "+e.getMessage());
+        }
+    }
+
+    public IngestionJob submitCreateProject(int projectId, CreateProjectRequest request) throws IOException {
+        Map<String,String> params = new HashMap<>();
+        params.put("name", request.name());
+        params.put("repoURL", request.repoURL());
+        params.put("branch", request.branch());
+        // Only whether there were credentials, a resume before the resource is stored cannot read them back
+        params.put("credentials", String.valueOf(request.username() != null && !request.username().isEmpty()));
+        return submit(projectId, JobTypes.create, params,
+            progress -> ingestionService.createProject(
+                progress, projectId, request.name(), request.repoURL(), request.branch(),
+                request.username(), request.password()
+            )
+        );
+    }
+
+    public IngestionJob submitRefreshRepo(int projectId) throws IOException {
+        return submit(projectId, JobTypes.refresh, null,
+            progress -> ingestionService.refreshRepo(progress, projectId)
+        );
+    }
+
+    /**
+     * Start a new job doing the work of a failed one, the failed job is marked superseded.
+     * A create job resumes from the checkpoints of the failed one, credentials are read back from the project resource.
+     * @throws IllegalStateException if the job is not failed, the project has a job in progress, or the create job
+     * used credentials and failed before its project resource was stored
+     */
+    public IngestionJob retry(int jobId) throws IOException {
+        IngestionJob failed = jobRepository.getJobById(jobId);
+        if (failed == null || failed.status() != Statuses.failed) {
+            throw new IllegalStateException("Job "+jobId+" is not a failed job");
+        }
+        int projectId = failed.projectId();
+        Map<String,String> params = failed.params();
+        if (failed.type() == JobTypes.create && params != null && "true".equals(params.get("credentials"))
+            && !ingestionService.hasResources(projectId)) {
+            throw new IllegalStateException("Job "+jobId+" failed before the repository credentials were stored, create the project again");
+        }
+        JobTask task = switch (failed.type()) {
+            case create -> progress -> ingestionService.resumeProject(progress, projectId, params);
+            case refresh -> progress -> ingestionService.refreshRepo(progress, projectId);
+        };
+        IngestionJob job = addJob(projectId, failed.type(), params, () -> {
+            if (!jobRepository.supersede(jobId)) {
+                throw new IllegalStateException("Job "+jobId+" is not a failed job");
+            }
+        });
+        start(job, task);
+        return job;
+    }
+
+    public IngestionJob getJob(int jobId) {
+        return jobRepository.getJobById(jobId);
+    }
+
+    public List<IngestionJob> getJobsByProjectId(int projectId) {
+        return jobRepository.getJobsByProjectId(projectId);
+    }
+
+    /**
+     * Subscribe to the changes of a job, the current state is sent right away.
+     * The emitter completes when the job is done or failed.
+     */
+    public SseEmitter subscribe(int jobId) throws IOException {
+        SseEmitter emitter = new SseEmitter(0L);
+        List<SseEmitter> emitters = subscribers.computeIfAbsent(jobId, k -> new CopyOnWriteArrayList<>());
+        emitters.add(emitter);
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitter.onError(e -> emitters.remove(emitter));
+        IngestionJob job = jobRepository.getJobById(jobId);
+        if (job == null) {
+            emitter.completeWithError(new IllegalArgumentException("Job "+jobId+" not found"));
+            return emitter;
+        }
+        emitter.send(SseEmitter.event().name("job").data(job));
+        if (job.isFinished()) {
+            emitter.complete();
+        }
+        return emitter;
+    }
+
+    private IngestionJob submit(int projectId, JobTypes type, Map<String,String> params, JobTask task) throws IOException {
+        IngestionJob job = addJob(projectId, type, params, () -> {});
+        start(job, task);
+        return job;
+    }
+
+    /**
+     * Insert the job in a transaction with the other writes of before.
+     * @throws IllegalStateException if the project already has a queued or running job
+     */
+    private IngestionJob addJob(int projectId, JobTypes type, Map<String,String> params, Runnable before) {
+        try {
+            return transactionTemplate.execute(status -> {
+                before.run();
+                try {
+                    return jobRepository.addJob(projectId, type, params, instanceId);
+                } catch (JsonProcessingException e) {
+                    throw new IllegalArgumentException("Invalid job params", e);
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            throw new IllegalStateException("Project "+projectId+" already has an ingestion job in progress");
+        }
+    }
+
+    private void start(IngestionJob job, JobTask task) {
+        int projectId = job.projectId();
+        JobTypes type = job.type();
+        jobExecutor.execute(() -> {
+            JobProgress progress = new JobProgress(job.jobId());
+            try {
+                System.out.println("Job "+job.jobId()+" "+type+" started for project "+projectId);
+                task.run(progress);
+                progress.done();
+                System.out.println("Job "+job.jobId()+" "+type+" done for project "+projectId);
+            } catch (Exception e) {
+                e.printStackTrace();
+                jobRepository.fail(job.jobId(), e.getMessage() == null ? e.toString() : e.getMessage());
+                publish(job.jobId());
+            }
+        });
+    }
+
+    private void publish(int jobId) {
+        List<SseEmitter> emitters = subscribers.get(jobId);
+        if (emitters == null || emitters.isEmpty()) {
+            return;
+        }
+        IngestionJob job = jobRepository.getJobById(jobId);
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().name("job").data(job));
+                if (job.isFinished()) {
+                    emitter.complete();
+                }
+            } catch (Exception e) {
+                emitters.remove(emitter);
+            }
+        }
+        if (job.isFinished()) {
+            subscribers.remove(jobId);
+        }
+    }
+}
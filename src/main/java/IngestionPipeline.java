@@ -0,0 +1,173 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.dto.FileRenameDescriptor;
+import com.unbumpkin.codechat.dto.request.CreateVSFileRequest;
+import com.unbumpkin.codechat.model.openai.OaiFile.Purposes;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.FileReference;
+import com.unbumpkin.codechat.service.openai.OaiFileUploadCache;
+import com.unbumpkin.codechat.service.openai.OaiFileUploadCache.CachedUpload;
+import com.unbumpkin.codechat.service.RepositoryIndex.IndexedFile;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+import com.unbumpkin.codechat.util.ExtMimeType;
+
+/**
+ * Runs the rename and upload stages of project ingestion on virtual threads.
+ * The number of files in flight is capped globally and per project, results are
+ * reported and returned in the order the files were given.
+ */
+@Service
+public class IngestionPipeline {
+    @Autowired
+    private OaiFileUploadCache uploadCache;
+
+    private final int projectConcurrency;
+    private final Semaphore workerPermits;
+    // Removed when the last ingest() call of the project returns
+    private final Map<Integer,ProjectPermits> projectPermits = new ConcurrentHashMap<>();
+
+    private static class ProjectPermits {
+        final Semaphore semaphore;
+        // Guarded by the projectPermits map operations
+        int callers;
+
+        ProjectPermits(int permits) {
+            this.semaphore = new Semaphore(permits);
+        }
+    }
+
+    public IngestionPipeline(
+        @Value("${codechat.ingestion.max-workers:64}") int maxWorkers,
+        @Value("${codechat.ingestion.project-concurrency:16}") int projectConcurrency
+    ) {
+        this.workerPermits = new Semaphore(maxWorkers);
+        this.projectConcurrency = projectConcurrency;
+    }
+
+    /**
+     * @param reference the core.oaifile row to store for the file
+     * @param reused true if the content was already uploaded and no upload happened
+     */
+    public record IngestedFile(FileReference reference, CreateVSFileRequest request, Types type, boolean reused) {
+        public String fileId() {
+            return reference.oaiFileId();
+        }
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * Rename and upload the files.
+     * @param progressListener called in file order as files complete, can be null
+     * @return the ingested files in the same order as files
+     */
+    public List<IngestedFile> ingest(
+        int projectId, int prId, Collection<IndexedFile> files, int basePathLength,
+        ProgressListener progressListener
+    ) throws IOException {
+        List<IndexedFile> lFiles = new ArrayList<>(files);
+        Semaphore projectSem = projectPermits.compute(projectId, (k, permits) -> {
+            ProjectPermits held = permits == null ? new ProjectPermits(projectConcurrency) : permits;
+            held.callers++;
+            return held;
+        }).semaphore;
+        List<Future<IngestedFile>> futures = new ArrayList<>(lFiles.size());
+        List<IngestedFile> ingested = new ArrayList<>(lFiles.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (IndexedFile file : lFiles) {
+                futures.add(executor.submit(() -> {
+                    // Project first: a project waiting on its own cap must not hold global permits
+                    projectSem.acquire();
+                    try {
+                        workerPermits.acquire();
+                        try {
+                            return ingestFile(projectId, prId, file, basePathLength);
+                        } finally {
+                            workerPermits.release();
+                        }
+                    } finally {
+                        projectSem.release();
+                    }
+                }));
+            }
+            // Report in submission order so the log and the result follow the file order
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    IngestedFile file = futures.get(i).get();
+                    ingested.add(file);
+                    System.out.println("["+(i+1)+"/"+futures.size()+"] file "+lFiles.get(i).relativePath()+" ingested with id "+file.fileId()+(file.reused() ? " (reused)" : ""));
+                    if (progressListener != null) {
+                        progressListener.onProgress(i+1, futures.size());
+                    }
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // Don't wait for the remaining uploads when closing the executor
+                futures.forEach(f -> f.cancel(true));
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ingestion interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException("Ingestion failed: "+cause.getMessage(), cause);
+        } finally {
+            projectPermits.computeIfPresent(projectId, (k, permits) -> --permits.callers == 0 ? null : permits);
+        }
+        return ingested;
+    }
+
+    private IngestedFile ingestFile(
+        int projectId, int prId, IndexedFile file, int basePathLength
+    ) throws IOException {
+        FileRenameDescriptor desc = ExtMimeType.oaiRename(file.file());
+        CachedUpload upload = uploadCache.uploadFile(
+            desc.newFile(), basePathLength+1, Purposes.assistants, projectId, prId, file.lineCount(), file.contentHash()
+        );
+        return new IngestedFile(
+            upload.reference(), new CreateVSFileRequest(upload.reference().oaiFileId(), attributes(file)),
+            file.type(), upload.reused()
+        );
+    }
+
+    /**
+     * @return the vector store attributes of the file, see the assistant instructions
+     */
+    public static Map<String,String> attributes(IndexedFile file) {
+        Map<String,String> attributes = new HashMap<>();
+        attributes.put("name", file.name());
+        attributes.put("path", file.relativePath());
+        attributes.put("extension", file.extension());
+        // Should I put the "."? If so put it in the assistant instructions
+        attributes.put("mime-type", file.mimeType());
+        attributes.put("nbLines", String.valueOf(file.lineCount()));
+        attributes.put("type", file.type().name());
+        return attributes;
+    }
+}
@@ -0,0 +1,218 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.repository.ChunkRepository;
+import com.unbumpkin.codechat.repository.ChunkRepository.Chunk;
+import com.unbumpkin.codechat.service.HnswIndex.Match;
+import com.unbumpkin.codechat.service.RepositoryIndex.IndexedFile;
+import com.unbumpkin.codechat.service.SourceChunker.SourceChunk;
+
+/**
+ * Retrieval over core.chunk without any remote call: one HNSW index per project,
+ * loaded from the table the first time the project is searched and kept up to date
+ * when files are ingested or removed. Enabled with codechat.retrieval.enabled.
+ */
+@Service
+public class LocalRetrievalService {
+    // Chunks embedded and inserted together
+    private static final int CHUNK_BATCH_SIZE = 256;
+
+    @Autowired
+    private ChunkRepository chunkRepository;
+    @Autowired
+    private Embedder embedder;
+
+    @Value("${codechat.retrieval.enabled:false}")
+    private boolean enabled;
+    @Value("${codechat.retrieval.ef-search:64}")
+    private int efSearch;
+    @Value("${codechat.retrieval.ef-construction:100}")
+    private int efConstruction;
+    // Generated files and vendored assets are not chunked
+    @Value("${codechat.retrieval.max-file-size:1048576}")
+    private long maxFileSize;
+
+    private final Map<Integer,HnswIndex> indexes = new ConcurrentHashMap<>();
+
+    public record RetrievedChunk(Chunk chunk, float score) {}
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String fileUri(int prId, String relativePath) {
+        return "pr:"+prId+"/"+relativePath;
+    }
+
+    /**
+     * @return the k chunks closest to the query, best first
+     */
+    public List<RetrievedChunk> search(int projectId, String query, int k) throws IOException {
+        List<Match> matches = getIndex(projectId).search(embedder.embed(query), k, efSearch);
+        List<Integer> ids = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            ids.add(match.id());
+        }
+        Map<Integer,Chunk> chunks = chunkRepository.getChunks(ids);
+        List<RetrievedChunk> retrieved = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            Chunk chunk = chunks.get(match.id());
+            if (chunk != null) {
+                retrieved.add(new RetrievedChunk(chunk, match.score()));
+            }
+        }
+        return retrieved;
+    }
+
+    /**
+     * The closest chunks formatted as context for the assistant, empty if none.
+     */
+    public String buildContext(int projectId, String question, int k) throws IOException {
+        List<RetrievedChunk> retrieved = search(projectId, question, k);
+        if (retrieved.isEmpty()) {
+            return "";
+        }
+        StringBuilder context = new StringBuilder("Relevant project excerpts:\n");
+        for (RetrievedChunk item : retrieved) {
+            Chunk chunk = item.chunk();
+            Map<String,String> metadata = chunk.metadata() == null ? Map.of() : chunk.metadata();
+            context.append("\n--- ").append(metadata.getOrDefault("path", chunk.uri()))
+                .append(" (line ").append(chunk.start()).append(")\n")
+                .append(chunk.content()).append('\n');
+        }
+        return context.toString();
+    }
+
+    /**
+     * Replace the chunks of the files. Each file is split while it is read,
+     * the chunks are embedded and inserted CHUNK_BATCH_SIZE at a time.
+     */
+    public void indexFiles(int projectId, int prId, Collection<IndexedFile> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        List<String> uris = new ArrayList<>(files.size());
+        for (IndexedFile file : files) {
+            uris.add(fileUri(prId, file.relativePath()));
+        }
+        removeUris(projectId, uris);
+        List<Chunk> batch = new ArrayList<>(CHUNK_BATCH_SIZE);
+        for (IndexedFile file : files) {
+            if (file.size() > maxFileSize) {
+                System.out.println("File "+file.relativePath()+" too large to be chunked: "+file.size()+" bytes");
+                continue;
+            }
+            String uri = fileUri(prId, file.relativePath());
+            SourceChunker.chunk(file.file().toPath(), file.extension(), sourceChunk -> {
+                batch.add(toChunk(projectId, uri, file, sourceChunk));
+                if (batch.size() == CHUNK_BATCH_SIZE) {
+                    addChunks(projectId, batch);
+                    batch.clear();
+                }
+            });
+        }
+        addChunks(projectId, batch);
+        System.out.println(files.size()+" files chunked for project "+projectId);
+    }
+
+    private static Chunk toChunk(int projectId, String uri, IndexedFile file, SourceChunk sourceChunk) {
+        Map<String,String> metadata = new HashMap<>();
+        metadata.put("path", file.relativePath());
+        metadata.put("name", file.name());
+        metadata.put("language", file.extension());
+        metadata.put("type", sourceChunk.kind());
+        metadata.put("endLine", String.valueOf(sourceChunk.endLine()));
+        if (sourceChunk.symbol() != null) {
+            metadata.put("symbol", sourceChunk.symbol());
+            metadata.put("symbols", String.join(",", sourceChunk.symbols()));
+        }
+        if (sourceChunk.parent() != null) {
+            metadata.put("parent", sourceChunk.parent());
+        }
+        // text columns refuse NUL
+        String content = sourceChunk.content().replace("\0", "");
+        return new Chunk(0, projectId, uri, file.type().name(), content, sourceChunk.startLine(), null, metadata);
+    }
+
+    /**
+     * Embed the chunks without embedding, store them and add them to the loaded index.
+     */
+    public List<Chunk> addChunks(int projectId, List<Chunk> chunks) throws IOException {
+        if (chunks.isEmpty()) {
+            return List.of();
+        }
+        List<String> texts = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            if (chunk.embedding() == null) {
+                texts.add(chunk.content());
+            }
+        }
+        List<float[]> vectors = embedder.embedAll(texts);
+        List<Chunk> embedded = new ArrayList<>(chunks.size());
+        int next = 0;
+        for (Chunk chunk : chunks) {
+            embedded.add(chunk.embedding() != null ? chunk : new Chunk(
+                chunk.chunkId(), chunk.projectId(), chunk.uri(), chunk.chunkType(), chunk.content(), chunk.start(),
+                vectors.get(next++), chunk.metadata()
+            ));
+        }
+        List<Chunk> added = chunkRepository.addChunks(embedded);
+        // Not loaded yet: the index will read them from the table
+        HnswIndex index = indexes.get(projectId);
+        if (index != null) {
+            for (Chunk chunk : added) {
+                index.add(chunk.chunkId(), chunk.embedding());
+            }
+        }
+        return added;
+    }
+
+    public void removeUris(int projectId, Collection<String> uris) {
+        List<Integer> deleted = chunkRepository.deleteChunksByUris(projectId, uris);
+        HnswIndex index = indexes.get(projectId);
+        if (index == null) {
+            return;
+        }
+        for (int chunkId : deleted) {
+            index.remove(chunkId);
+        }
+        // Removed vectors still cost search time, rebuild once they outnumber the live ones
+        if (index.deletedCount() > index.size()) {
+            evict(projectId);
+        }
+    }
+
+    public void removeProject(int projectId) {
+        chunkRepository.deleteChunksByProjectId(projectId);
+        evict(projectId);
+    }
+
+    public void evict(int projectId) {
+        indexes.remove(projectId);
+    }
+
+    private HnswIndex getIndex(int projectId) {
+        return indexes.computeIfAbsent(projectId, id -> {
+            HnswIndex index = new HnswIndex(embedder.dimensions(), efConstruction);
+            chunkRepository.forEachEmbedding(id, (chunkId, embedding) -> {
+                // Written by another embedder
+                if (embedding.length == index.dimensions()) {
+                    index.add(chunkId, embedding);
+                }
+            });
+            System.out.println("Local retrieval index of project "+id+" loaded: "+index.size()+" chunks");
+            return index;
+        });
+    }
+}
@@ -0,0 +1,141 @@
+package com.unbumpkin.codechat.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.DataClassRowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import com.unbumpkin.codechat.model.Discussion;
+import com.unbumpkin.codechat.model.Message;
+
+/**
+ * Keyset pages of the messages of a discussion and of the discussions of a project.
+ * A page reads the rows before a cursor from the (did, msgid) and (projectid, did) indexes,
+ * so its cost does not grow with the history like an offset would.
+ */
+@Repository
+public class MessageHistoryRepository {
+    // Columns are matched to the record components by name, did is also the discussionId of a message
+    private static final RowMapper<Message> MESSAGE_MAPPER = new DataClassRowMapper<>(Message.class);
+    private static final RowMapper<Discussion> DISCUSSION_MAPPER = new DataClassRowMapper<>(Discussion.class);
+    private static final RowMapper<HistoryMessage> HISTORY_MAPPER = (rs, rowNum) -> new HistoryMessage(
+        rs.getInt("msgid"), rs.getString("role"), rs.getString("message")
+    );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * @param nextCursor the cursor of the following page, null on the last one
+     */
+    public record Page<T>(List<T> items, Integer nextCursor) {}
+
+    /**
+     * The text of a message, without the rest of its row.
+     */
+    public record HistoryMessage(int msgId, String role, String message) {}
+
+    /**
+     * @param before msgid to read before, null for the latest messages
+     * @return the messages in chronological order, the cursor reads the older ones
+     */
+    public Page<Message> getMessagesBefore(int did, Integer before, int limit) {
+        // One more row tells if there is an older page
+        List<Integer> msgIds = new ArrayList<>(limit+1);
+        List<Message> messages = new ArrayList<>(jdbcTemplate.query("""
+            select m.*, m.did as discussionid from core.message m
+            where m.did=? and m.msgid < ?
+            order by m.msgid desc
+            limit ?
+            """, (rs, rowNum) -> {
+                msgIds.add(rs.getInt("msgid"));
+                return MESSAGE_MAPPER.mapRow(rs, rowNum);
+            }, did, before == null ? Integer.MAX_VALUE : before, limit+1
+        ));
+        Integer nextCursor = null;
+        if (messages.size() > limit) {
+            messages.remove(limit);
+            nextCursor = msgIds.get(limit-1);
+        }
+        Collections.reverse(messages);
+        return new Page<>(messages, nextCursor);
+    }
+
+    /**
+     * @param before did to read before, null for the latest discussions
+     * @return the discussions newest first
+     */
+    public Page<Discussion> getDiscussionsBefore(int projectId, Integer before, int limit) {
+        List<Discussion> discussions = new ArrayList<>(jdbcTemplate.query("""
+            select * from core.discussion
+            where projectid=? and did < ?
+            order by did desc
+            limit ?
+            """, DISCUSSION_MAPPER, projectId, before == null ? Integer.MAX_VALUE : before, limit+1
+        ));
+        Integer nextCursor = null;
+        if (discussions.size() > limit) {
+            discussions.remove(limit);
+            nextCursor = discussions.get(limit-1).did();
+        }
+        return new Page<>(discussions, nextCursor);
+    }
+
+    /**
+     * @param before msgid to read before, null for the latest messages
+     * @return the messages newest first
+     */
+    public List<HistoryMessage> getHistoryBefore(int did, Integer before, int limit) {
+        return jdbcTemplate.query("""
+            select msgid, role, message from core.message
+            where did=? and msgid < ?
+            order by msgid desc
+            limit ?
+            """, HISTORY_MAPPER, did, before == null ? Integer.MAX_VALUE : before, limit
+        );
+    }
+
+    /**
+     * @return the messages after the msgid, oldest first
+     */
+    public List<HistoryMessage> getHistoryAfter(int did, int after, int limit) {
+        return jdbcTemplate.query("""
+            select msgid, role, message from core.message
+            where did=? and msgid > ?
+            order by msgid
+            limit ?
+            """, HISTORY_MAPPER, did, after, limit
+        );
+    }
+
+    /**
+     * Store the typed answer on the assistant message that holds its text.
+     */
+    public void setAnswer(int msgId, String answerJson) {
+        jdbcTemplate.update(
+            "update core.message set answer=?::jsonb where msgid=?", answerJson, msgId
+        );
+    }
+
+    /**
+     * @return the typed answer of the message as json, null for questions and older answers
+     */
+    public String getAnswer(int msgId) {
+        List<String> answers = jdbcTemplate.queryForList(
+            "select answer::text from core.message where msgid=?", String.class, msgId
+        );
+        return answers.isEmpty() ? null : answers.get(0);
+    }
+
+    public boolean hasMessages(int did) {
+        Boolean exists = jdbcTemplate.queryForObject(
+            "select exists (select 1 from core.message where did=?)", Boolean.class, did
+        );
+        return exists != null && exists;
+    }
+}
@@ -0,0 +1,92 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.unbumpkin.codechat.service.Embedder;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+
+/**
+ * Embedder calling the OpenAI embeddings endpoint, enabled with codechat.retrieval.embedder=openai.
+ * The vectors are shortened to the 768 dimensions of core.chunk.embedding by the endpoint.
+ */
+@Service
+@ConditionalOnProperty(name = "codechat.retrieval.embedder", havingValue = "openai")
+public class OaiEmbedder implements Embedder {
+    public static final int DIMENSIONS = 768;
+    // Inputs per request
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final OaiHttpClient httpClient;
+    private final String model;
+
+    public OaiEmbedder(
+        OaiHttpClient httpClient,
+        @Value("${codechat.retrieval.embedding-model:text-embedding-3-small}") String model
+    ) {
+        this.httpClient = httpClient;
+        this.model = model;
+    }
+
+    @Override
+    public int dimensions() {
+        return DIMENSIONS;
+    }
+
+    /**
+     * Embeds a question, ahead of the indexing requests.
+     */
+    @Override
+    public float[] embed(String text) throws IOException {
+        return request(List.of(text), Lane.interactive).get(0);
+    }
+
+    @Override
+    public List<float[]> embedAll(List<String> texts) throws IOException {
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (int from = 0; from < texts.size(); from += MAX_BATCH_SIZE) {
+            vectors.addAll(request(texts.subList(from, Math.min(from+MAX_BATCH_SIZE, texts.size())), Lane.bulk));
+        }
+        return vectors;
+    }
+
+    private List<float[]> request(List<String> texts, Lane lane) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("model", model);
+        body.put("dimensions", DIMENSIONS);
+        ArrayNode input = body.putArray("input");
+        texts.forEach(input::add);
+        HttpRequest request = httpClient.request("/embeddings")
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+            .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(), lane);
+        if (response.statusCode() >= 300) {
+            throw new IOException("Embeddings request failed with status "+response.statusCode()+": "+response.body());
+        }
+        // Results carry their input index, do not rely on their order
+        float[][] vectors = new float[texts.size()][];
+        for (JsonNode item : objectMapper.readTree(response.body()).path("data")) {
+            JsonNode values = item.path("embedding");
+            float[] vector = new float[values.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = (float) values.get(i).asDouble();
+            }
+            vectors[item.path("index").asInt()] = vector;
+        }
+        return List.of(vectors);
+    }
+}
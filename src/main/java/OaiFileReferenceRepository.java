@@ -0,0 +1,361 @@
+package com.unbumpkin.codechat.repository.openai;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import com.unbumpkin.codechat.model.openai.OaiFile.Purposes;
+
+/**
+ * Rows of core.oaifile seen as references to an uploaded file.
+ * Rows of different projects can share the same oai_f_id when their content hash match,
+ * the remote file should only be deleted when its last row is gone. Within a project each path has its own
+ * upload: the vector store attributes (path, name) belong to the upload, a shared one would only keep the last path.
+ * An ingestion claims the uploads it reuses (core.oaifileclaim) until their rows are stored, claims and
+ * releases of the same upload are serialized by a transaction advisory lock on its id.
+ */
+@Repository
+public class OaiFileReferenceRepository {
+    // Under it a batch of inserts is cheaper than a copy
+    private static final int COPY_THRESHOLD = 100;
+    private static final RowMapper<FileReference> REFERENCE_MAPPER = (rs, rowNum) -> new FileReference(
+        rs.getInt("prid"),
+        rs.getString("oai_f_id"),
+        rs.getString("file_name"),
+        rs.getString("rootdir"),
+        rs.getString("filepath"),
+        Purposes.valueOf(rs.getString("purpose")),
+        rs.getInt("linecount"),
+        rs.getString("contenthash")
+    );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    public record FileReference(
+        int prId, String oaiFileId, String fileName, String rootDir, String filePath,
+        Purposes purpose, int lineCount, String contentHash
+    ) {}
+
+    /**
+     * @return the oai file id of a file of another project with the same content and metadata, or null.
+     * The uploads of deleted projects are not reused, the reaper may be deleting them. The uploads the project
+     * of prId already uses, by a row or a claim, are not reused either.
+     */
+    public String findFileIdByHash(String contentHash, String fileName, Purposes purpose, int prId) {
+        List<String> ids = jdbcTemplate.queryForList("""
+            with project as (
+                select projectid from core.projectresource where prid=?
+            )
+            select f.oai_f_id from core.oaifile f
+            join core.projectresource pr on pr.prid=f.prid
+            join core.project p on p.projectid=pr.projectid
+            where f.contenthash=? and f.file_name=? and f.purpose=? and not p.isdeleted
+            and not exists (
+                select 1 from core.oaifile o
+                join core.projectresource opr on opr.prid=o.prid
+                where o.oai_f_id=f.oai_f_id and opr.projectid=(select projectid from project)
+            ) and not exists (
+                select 1 from core.oaifileclaim c
+                join core.projectresource cpr on cpr.prid=c.prid
+                where c.oai_f_id=f.oai_f_id and cpr.projectid=(select projectid from project)
+            )
+            limit 1
+            """, String.class, prId, contentHash, fileName, purpose.toString()
+        );
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    /**
+     * Claim an upload found by findFileIdByHash for the project resource, call in a transaction.
+     * @return false when the upload lost its last reference since, it may be deleted and must not be reused
+     */
+    public boolean claimFile(String oaiFileId, int prId) {
+        lockFiles(List.of(oaiFileId));
+        return jdbcTemplate.update("""
+            insert into core.oaifileclaim (oai_f_id, prid)
+            select ?, ?
+            where exists (
+                select 1 from core.oaifile f
+                join core.projectresource pr on pr.prid=f.prid
+                join core.project p on p.projectid=pr.projectid
+                where f.oai_f_id=? and not p.isdeleted
+            ) or exists (
+                select 1 from core.oaifileclaim c
+                join core.projectresource pr on pr.prid=c.prid
+                join core.project p on p.projectid=pr.projectid
+                where c.oai_f_id=? and not p.isdeleted
+            )
+            on conflict (oai_f_id, prid) do update set created=now()
+            """, oaiFileId, prId, oaiFileId, oaiFileId
+        ) > 0;
+    }
+
+    /**
+     * Claim a new upload for the project resource until its row is stored.
+     */
+    public void addClaim(String oaiFileId, int prId) {
+        jdbcTemplate.update(
+            "insert into core.oaifileclaim (oai_f_id, prid) values (?, ?) on conflict (oai_f_id, prid) do nothing",
+            oaiFileId, prId
+        );
+    }
+
+    /**
+     * Take the advisory lock of each upload until the end of the transaction, in id order.
+     */
+    public void lockFiles(Collection<String> oaiFileIds) {
+        if (oaiFileIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(lockFilesSql("select unnest(?::varchar[]) as oai_f_id"));
+                ps.setArray(1, connection.createArrayOf("varchar", oaiFileIds.toArray()));
+                return ps;
+            }, rs -> {}
+        );
+    }
+
+    /**
+     * @param idsQuery a query with an oai_f_id column
+     * @return a query locking the ids found by idsQuery, see lockFiles
+     */
+    public static String lockFilesSql(String idsQuery) {
+        return "select pg_advisory_xact_lock(hashtext(oai_f_id)) from (select distinct oai_f_id from ("
+            +idsQuery+") ids order by oai_f_id) locked";
+    }
+
+    /**
+     * Insert the references, large lists are sent with a single copy.
+     * The claims of their uploads are dropped, the rows now keep the uploads.
+     */
+    public void storeReferences(List<FileReference> references) {
+        if (references.size() >= COPY_THRESHOLD) {
+            copyReferences(references);
+        } else {
+            insertReferences(references);
+        }
+        Map<Integer,List<String>> claimed = new HashMap<>();
+        for (FileReference ref : references) {
+            claimed.computeIfAbsent(ref.prId(), k -> new ArrayList<>()).add(ref.oaiFileId());
+        }
+        for (Map.Entry<Integer,List<String>> entry : claimed.entrySet()) {
+            jdbcTemplate.update(connection -> {
+                PreparedStatement ps = connection.prepareStatement(
+                    "delete from core.oaifileclaim where prid=? and oai_f_id = any(?)"
+                );
+                ps.setInt(1, entry.getKey());
+                ps.setArray(2, connection.createArrayOf("varchar", entry.getValue().toArray()));
+                return ps;
+            });
+        }
+    }
+
+    private void insertReferences(List<FileReference> references) {
+        jdbcTemplate.batchUpdate("""
+            insert into core.oaifile (prid, oai_f_id, file_name, rootdir, filepath, purpose, linecount, contenthash)
+            values (?, ?, ?, ?, ?, ?, ?, ?)
+            """, references, 500, (ps, ref) -> {
+                ps.setInt(1, ref.prId());
+                ps.setString(2, ref.oaiFileId());
+                ps.setString(3, ref.fileName());
+                ps.setString(4, ref.rootDir());
+                ps.setString(5, ref.filePath());
+                ps.setString(6, ref.purpose().toString());
+                ps.setInt(7, ref.lineCount());
+                ps.setString(8, ref.contentHash());
+            }
+        );
+    }
+
+    private void copyReferences(List<FileReference> references) {
+        StringBuilder csv = new StringBuilder(references.size()*128);
+        for (FileReference ref : references) {
+            csv.append(ref.prId()).append(',')
+                .append(csvValue(ref.oaiFileId())).append(',')
+                .append(csvValue(ref.fileName())).append(',')
+                .append(csvValue(ref.rootDir())).append(',')
+                .append(csvValue(ref.filePath())).append(',')
+                .append(csvValue(ref.purpose().toString())).append(',')
+                .append(ref.lineCount()).append(',')
+                .append(csvValue(ref.contentHash())).append('\n');
+        }
+        // Runs on the connection of the current transaction
+        jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            try {
+                return connection.unwrap(PGConnection.class).getCopyAPI().copyIn("""
+                    copy core.oaifile (prid, oai_f_id, file_name, rootdir, filepath, purpose, linecount, contenthash)
+                    from stdin with (format csv)
+                    """, new StringReader(csv.toString())
+                );
+            } catch (IOException e) {
+                throw new IllegalStateException("Copy of "+references.size()+" file references failed", e);
+            }
+        });
+    }
+
+    // Quoted, an unquoted empty value is a null
+    private static String csvValue(String value) {
+        return value == null ? "" : '"'+value.replace("\"", "\"\"")+'"';
+    }
+
+    /**
+     * @return the references of the project resource at the given paths, by path
+     */
+    public Map<String,FileReference> getReferencesByPaths(int prId, Collection<String> filePaths) {
+        Map<String,FileReference> references = new HashMap<>();
+        if (filePaths.isEmpty()) {
+            return references;
+        }
+        jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement("""
+                    select prid, oai_f_id, file_name, rootdir, filepath, purpose, linecount, contenthash
+                    from core.oaifile
+                    where prid=? and filepath = any(?)
+                    """);
+                ps.setInt(1, prId);
+                ps.setArray(2, connection.createArrayOf("varchar", filePaths.toArray()));
+                return ps;
+            }, rs -> {
+                FileReference reference = REFERENCE_MAPPER.mapRow(rs, 0);
+                references.put(reference.filePath(), reference);
+            }
+        );
+        return references;
+    }
+
+    /**
+     * @return a reference of the project for each of the oai file ids found, by oai file id
+     */
+    public Map<String,FileReference> getReferencesByFileIds(int projectId, Collection<String> oaiFileIds) {
+        Map<String,FileReference> references = new HashMap<>();
+        if (oaiFileIds.isEmpty()) {
+            return references;
+        }
+        jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement("""
+                    select distinct on (f.oai_f_id)
+                        f.prid, f.oai_f_id, f.file_name, f.rootdir, f.filepath, f.purpose, f.linecount, f.contenthash
+                    from core.oaifile f
+                    join core.projectresource pr on pr.prid=f.prid
+                    where pr.projectid=? and f.oai_f_id = any(?)
+                    order by f.oai_f_id, f.fid
+                    """);
+                ps.setInt(1, projectId);
+                ps.setArray(2, connection.createArrayOf("varchar", oaiFileIds.toArray()));
+                return ps;
+            }, rs -> {
+                FileReference reference = REFERENCE_MAPPER.mapRow(rs, 0);
+                references.put(reference.oaiFileId(), reference);
+            }
+        );
+        return references;
+    }
+
+    /**
+     * Link the references of the project resource to the vector store in one statement.
+     * Reused uploads also match rows of earlier windows and refreshes, those links already exist and are skipped.
+     */
+    public void attachToVectorStore(String vsOaiId, int prId, Collection<String> oaiFileIds) {
+        if (oaiFileIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement("""
+                insert into core.vectorstore_oaifile (vsid, fid)
+                select vs.vsid, f.fid
+                from core.vectorstore vs
+                join core.oaifile f on f.prid=? and f.oai_f_id = any(?)
+                where vs.oai_vs_id=?
+                on conflict (vsid, fid) do nothing
+                """);
+            ps.setInt(1, prId);
+            ps.setArray(2, connection.createArrayOf("varchar", oaiFileIds.toArray()));
+            ps.setString(3, vsOaiId);
+            return ps;
+        });
+    }
+
+    /**
+     * Point the reference at its new path after a rename, the uploaded file stays the same.
+     */
+    public void moveReference(int prId, String oldPath, String fileName, String filePath) {
+        jdbcTemplate.update(
+            "update core.oaifile set file_name=?, filepath=? where prid=? and filepath=?",
+            fileName, filePath, prId, oldPath
+        );
+    }
+
+    /**
+     * A released reference.
+     * @param detached no other file of the project uses the upload, it can leave the project vector stores
+     * @param unreferenced no other row uses the upload, the remote file can be deleted
+     */
+    public record ReleasedFile(String oaiFileId, boolean detached, boolean unreferenced) {}
+
+    /**
+     * Delete the rows of the references and their vector store associations in one statement, call in a transaction.
+     * A row is matched by its path and its upload: during a refresh the new upload of a modified file is stored
+     * at the same path before the old one is released. An upload is only detached once no other row of the project
+     * uses it. A claimed upload is not unreferenced, the locks taken here keep new claims out until the transaction ends.
+     */
+    public List<ReleasedFile> deleteReferences(int prId, Collection<FileReference> references) {
+        if (references.isEmpty()) {
+            return List.of();
+        }
+        List<String> filePaths = new ArrayList<>(references.size());
+        List<String> oaiFileIds = new ArrayList<>(references.size());
+        for (FileReference reference : references) {
+            filePaths.add(reference.filePath());
+            oaiFileIds.add(reference.oaiFileId());
+        }
+        lockFiles(oaiFileIds);
+        // The statement sees the rows as they were before its deletes, so the released rows are excluded by hand
+        return jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement("""
+                    with released as (
+                        select f.fid from core.oaifile f
+                        join unnest(?::varchar[], ?::varchar[]) as r(filepath, oai_f_id)
+                            on r.filepath=f.filepath and r.oai_f_id=f.oai_f_id
+                        where f.prid=?
+                    ), unlinked as (
+                        delete from core.vectorstore_oaifile where fid in (select fid from released)
+                    ), deleted as (
+                        delete from core.oaifile where fid in (select fid from released) returning oai_f_id
+                    )
+                    select d.oai_f_id,
+                        not exists (
+                            select 1 from core.oaifile f
+                            join core.projectresource pr on pr.prid=f.prid
+                            where f.oai_f_id=d.oai_f_id and f.fid not in (select fid from released)
+                            and pr.projectid=(select projectid from core.projectresource where prid=?)
+                        ) as detached,
+                        not exists (
+                            select 1 from core.oaifile f
+                            where f.oai_f_id=d.oai_f_id and f.fid not in (select fid from released)
+                        ) and not exists (
+                            select 1 from core.oaifileclaim c where c.oai_f_id=d.oai_f_id
+                        ) as unreferenced
+                    from (select distinct oai_f_id from deleted) d
+                    """);
+                ps.setArray(1, connection.createArrayOf("varchar", filePaths.toArray()));
+                ps.setArray(2, connection.createArrayOf("varchar", oaiFileIds.toArray()));
+                ps.setInt(3, prId);
+                ps.setInt(4, prId);
+                return ps;
+            }, (rs, rowNum) -> new ReleasedFile(rs.getString("oai_f_id"), rs.getBoolean("detached"), rs.getBoolean("unreferenced"))
+        );
+    }
+}
@@ -0,0 +1,140 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.unbumpkin.codechat.model.openai.OaiFile;
+import com.unbumpkin.codechat.model.openai.OaiFile.Purposes;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.FileReference;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.ReleasedFile;
+
+/**
+ * Content addressed front of OaiFileService: a file whose sha-256, name and purpose
+ * match a file uploaded for another project reuses its oai file id instead of being uploaded again.
+ * Identical files of the same project are uploaded once per path, see OaiFileReferenceRepository.
+ * Reused and new uploads are claimed for the project resource until storeReferences stores their rows.
+ */
+@Service
+public class OaiFileUploadCache {
+    @Autowired
+    private OaiFileService oaiFileService;
+    @Autowired
+    private OaiFileReferenceRepository referenceRepository;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    // Uploads in progress, so identical files of concurrent ingestions of other projects are only uploaded once
+    private final Map<String,InFlightUpload> inFlight = new ConcurrentHashMap<>();
+
+    public record CachedUpload(FileReference reference, boolean reused) {}
+
+    private record InFlightUpload(int projectId, CompletableFuture<String> upload) {}
+
+    /**
+     * Upload the file unless the same content was already uploaded.
+     * The returned reference is not stored, see OaiFileReferenceRepository.storeReferences
+     */
+    public CachedUpload uploadFile(
+        File file, int basePathLength, Purposes purpose, int projectId, int prId, int lineCount, String contentHash
+    ) throws IOException {
+        String filePath = file.getAbsolutePath();
+        String key = contentHash+"|"+file.getName()+"|"+purpose;
+        String oaiFileId = referenceRepository.findFileIdByHash(contentHash, file.getName(), purpose, prId);
+        // The claim keeps the upload from being deleted until the reference is stored
+        boolean reused = oaiFileId != null && claim(oaiFileId, prId);
+        if (!reused) {
+            InFlightUpload upload = new InFlightUpload(projectId, new CompletableFuture<>());
+            InFlightUpload existing = inFlight.putIfAbsent(key, upload);
+            if (existing != null && existing.projectId() != projectId) {
+                oaiFileId = await(existing.upload());
+                referenceRepository.addClaim(oaiFileId, prId);
+                reused = true;
+            } else {
+                // An identical file of the same project gets its own upload and is not awaited by others
+                boolean shared = existing == null;
+                try {
+                    OaiFile oaiFile = oaiFileService.uploadFile(filePath, basePathLength, purpose, prId);
+                    oaiFileId = oaiFile.fileId();
+                    referenceRepository.addClaim(oaiFileId, prId);
+                    if (shared) {
+                        upload.upload().complete(oaiFileId);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (shared) {
+                        upload.upload().completeExceptionally(e);
+                    }
+                    throw e;
+                } finally {
+                    if (shared) {
+                        inFlight.remove(key);
+                    }
+                }
+            }
+        }
+        if (reused) {
+            System.out.println("file "+file.getName()+" reused uploaded file "+oaiFileId);
+        }
+        return new CachedUpload(
+            new FileReference(
+                prId, oaiFileId, file.getName(), new File(filePath.substring(0, basePathLength)).getPath(),
+                filePath.substring(basePathLength), purpose, lineCount, contentHash
+            ),
+            reused
+        );
+    }
+
+    /**
+     * Remove the references of the project resource with a single delete.
+     * @return the released uploads, see OaiFileReferenceRepository.deleteReferences
+     */
+    public List<ReleasedFile> releaseFiles(int prId, Collection<FileReference> references) {
+        // The unreferenced uploads are decided under the claim locks
+        return transactionTemplate.execute(status -> referenceRepository.deleteReferences(prId, references));
+    }
+
+    /**
+     * Delete the remote files of the released uploads no reference is left for,
+     * call once they are removed from the vector stores. An unreferenced upload cannot be claimed any more.
+     * @return the number of remote files deleted
+     */
+    public int deleteUnreferenced(List<ReleasedFile> released) throws IOException {
+        int deleted = 0;
+        for (ReleasedFile file : released) {
+            if (file.unreferenced()) {
+                oaiFileService.deleteFile(file.oaiFileId());
+                deleted++;
+            }
+        }
+        if (deleted < released.size()) {
+            System.out.println((released.size()-deleted)+" released files still referenced, keeping them.");
+        }
+        return deleted;
+    }
+
+    private boolean claim(String oaiFileId, int prId) {
+        Boolean claimed = transactionTemplate.execute(status -> referenceRepository.claimFile(oaiFileId, prId));
+        return claimed != null && claimed;
+    }
+
+    private static String await(CompletableFuture<String> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an identical upload", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Identical upload failed: "+e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.security.CustomAuthentication;
+
+/**
+ * The HTTP/2 connection pool shared by all the OpenAI requests, behind a token bucket.
+ * request() builds the requests with the base url, the api key and the assistants header, so a client
+ * built against a stub server sends every request there.
+ * The bucket rate starts at the configured maximum, follows the x-ratelimit headers down when the
+ * remaining requests run short, halves on a 429 and pauses all the requests for its retry-after,
+ * then grows back slowly. Interactive requests go before bulk ones, and bulk requests leave a reserve
+ * of the bucket to them. Each user has at most caller-concurrency requests in flight, so one user
+ * cannot take all the connections.
+ */
+@Service
+public class OaiHttpClient {
+    public enum Lane { interactive, bulk }
+    public static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+
+    // Part of the bucket bulk requests cannot take
+    private static final double BULK_RESERVE = 0.25;
+    private static final double MIN_RATE = 0.5;
+    // Requests per second added to the rate after each response without pressure
+    private static final double RATE_STEP = 0.5;
+    private static final int MAX_RETRIES = 5;
+    private static final long DEFAULT_RETRY_MS = 1_000;
+    private static final long MAX_PAUSE_MS = 60_000;
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|s|m|h)");
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(60);
+
+    private final String baseUrl;
+    private final String apiKey;
+    private final HttpClient httpClient;
+    private final double maxRate;
+    private final int callerConcurrency;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // Bulkheads of the users with requests in flight, removed with the last one
+    private final Map<String,Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Guarded by lock
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil;
+    private int interactiveWaiting;
+
+    private static class Bulkhead {
+        final Semaphore semaphore;
+        // Guarded by the bulkheads map operations
+        int callers;
+
+        Bulkhead(int permits) {
+            this.semaphore = new Semaphore(permits, true);
+        }
+    }
+
+    /**
+     * @param baseUrl the api root, a local stub server in tests
+     * @param apiKey sent as bearer token, none when empty
+     * @param maxRequestsPerSecond the rate never goes over it
+     * @param callerConcurrency requests of a single user in flight at once
+     */
+    public OaiHttpClient(
+        @Value("${codechat.openai.base-url:"+DEFAULT_BASE_URL+"}") String baseUrl,
+        @Value("${codechat.openai.api-key:${OPENAI_API_KEY:}}") String apiKey,
+        @Value("${codechat.openai.max-rps:50}") double maxRequestsPerSecond,
+        @Value("${codechat.openai.caller-concurrency:8}") int callerConcurrency
+    ) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length()-1) : baseUrl;
+        this.apiKey = apiKey == null || apiKey.isEmpty() ? null : apiKey;
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(30))
+            .executor(executor)
+            .build();
+        this.maxRate = Math.max(MIN_RATE, maxRequestsPerSecond);
+        this.callerConcurrency = Math.max(1, callerConcurrency);
+        this.rate = this.maxRate;
+        this.tokens = this.maxRate;
+    }
+
+    /**
+     * @param path from the api root, like /threads/{id}/runs
+     * @return a builder with the headers of every OpenAI request and a 60s timeout the caller can change
+     */
+    public HttpRequest.Builder request(String path) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl+path))
+            .timeout(DEFAULT_TIMEOUT)
+            .header("OpenAI-Beta", "assistants=v2");
+        if (apiKey != null) {
+            builder.header("Authorization", "Bearer "+apiKey);
+        }
+        return builder;
+    }
+
+    /**
+     * Send once the bucket and the bulkhead of the caller allow it, a 429 is retried after its retry-after.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, Lane lane) throws IOException {
+        return send(request, handler, lane, caller());
+    }
+
+    /**
+     * send() on a virtual thread, the future fails with a CompletionException holding the IOException.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler, Lane lane) {
+        // The caller is read from the security context of the calling thread
+        String caller = caller();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return send(request, handler, lane, caller);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    public double rate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, Lane lane, String caller) throws IOException {
+        // Background work has no user, the bucket alone limits it
+        Semaphore bulkhead = caller == null ? null : bulkheads.compute(caller, (key, held) -> {
+            Bulkhead bulkheadOfCaller = held == null ? new Bulkhead(callerConcurrency) : held;
+            bulkheadOfCaller.callers++;
+            return bulkheadOfCaller;
+        }).semaphore;
+        try {
+            if (bulkhead != null) {
+                bulkhead.acquire();
+            }
+            try {
+                for (int attempt = 0; ; attempt++) {
+                    acquire(lane);
+                    HttpResponse<T> response = httpClient.send(request, handler);
+                    learn(response);
+                    if (response.statusCode() != 429 || attempt >= MAX_RETRIES) {
+                        return response;
+                    }
+                    if (response.body() instanceof InputStream body) {
+                        body.close();
+                    }
+                    System.out.println("Rate limited on "+request.uri().getPath()+", retrying at "+String.format("%.1f", rate())+" requests/s");
+                }
+            } finally {
+                if (bulkhead != null) {
+                    bulkhead.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Request to "+request.uri().getPath()+" interrupted", e);
+        } finally {
+            if (caller != null) {
+                bulkheads.computeIfPresent(caller, (key, held) -> --held.callers == 0 ? null : held);
+            }
+        }
+    }
+
+    /**
+     * @return the user of the request, null outside of a request
+     */
+    private static String caller() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication instanceof CustomAuthentication) {
+            return "user:"+((CustomAuthentication) authentication).getUserId();
+        }
+        return null;
+    }
+
+    private void acquire(Lane lane) throws InterruptedException {
+        lock.lock();
+        try {
+            if (lane == Lane.interactive) {
+                interactiveWaiting++;
+            }
+            try {
+                while (true) {
+                    refill();
+                    long pauseMs = pausedUntil-System.currentTimeMillis();
+                    if (pauseMs <= 0) {
+                        double reserve = lane == Lane.bulk ? (capacity()-1)*BULK_RESERVE : 0;
+                        if (tokens >= 1+reserve && (lane == Lane.interactive || interactiveWaiting == 0)) {
+                            tokens -= 1;
+                            return;
+                        }
+                    }
+                    long waitNanos = pauseMs > 0 ? TimeUnit.MILLISECONDS.toNanos(pauseMs) : (long) (1e9/rate);
+                    available.awaitNanos(waitNanos);
+                }
+            } finally {
+                if (lane == Lane.interactive) {
+                    interactiveWaiting--;
+                    // Bulk requests held back by this one can go
+                    available.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity(), tokens+(now-lastRefill)/1e9*rate);
+        lastRefill = now;
+    }
+
+    // One second of requests
+    private double capacity() {
+        return Math.max(1, rate);
+    }
+
+    private void learn(HttpResponse<?> response) {
+        Optional<String> remaining = response.headers().firstValue("x-ratelimit-remaining-requests");
+        Optional<String> reset = response.headers().firstValue("x-ratelimit-reset-requests");
+        lock.lock();
+        try {
+            refill();
+            if (response.statusCode() == 429) {
+                rate = Math.max(MIN_RATE, rate/2);
+                tokens = 0;
+                long retryMs = retryAfterMs(response).orElse(reset.map(OaiHttpClient::parseDuration).orElse(DEFAULT_RETRY_MS));
+                pausedUntil = Math.max(pausedUntil, System.currentTimeMillis()+Math.min(retryMs, MAX_PAUSE_MS));
+            } else if (remaining.isPresent() && reset.isPresent()) {
+                // Spread the requests left over the time until the limit resets
+                double allowed = parseDouble(remaining.get())/Math.max(parseDuration(reset.get()), 1)*1000;
+                rate = allowed < rate ? Math.max(MIN_RATE, allowed) : Math.min(maxRate, rate+RATE_STEP);
+            } else {
+                rate = Math.min(maxRate, rate+RATE_STEP);
+            }
+            tokens = Math.min(tokens, capacity());
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Optional<Long> retryAfterMs(HttpResponse<?> response) {
+        Optional<String> retryAfterMs = response.headers().firstValue("retry-after-ms");
+        if (retryAfterMs.isPresent()) {
+            return Optional.of((long) parseDouble(retryAfterMs.get()));
+        }
+        // Seconds, the HTTP date form is not used by OpenAI
+        return response.headers().firstValue("retry-after").map(seconds -> (long) (parseDouble(seconds)*1000));
+    }
+
+    /**
+     * @param duration like 1s, 120ms or 6m0s
+     * @return the duration in ms
+     */
+    static long parseDuration(String duration) {
+        Matcher matcher = DURATION_PART.matcher(duration);
+        double ms = 0;
+        boolean found = false;
+        while (matcher.find()) {
+            found = true;
+            double value = Double.parseDouble(matcher.group(1));
+            ms += switch (matcher.group(2)) {
+                case "ms" -> value;
+                case "s" -> value*1_000;
+                case "m" -> value*60_000;
+                default -> value*3_600_000;
+            };
+        }
+        return found ? (long) ms : DEFAULT_RETRY_MS;
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
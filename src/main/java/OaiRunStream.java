@@ -0,0 +1,125 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+
+/**
+ * Create a run with streaming enabled and relay the text deltas as they arrive.
+ * Streaming counterpart of OaiRunService.create() followed by waitForAnswer().
+ */
+public class OaiRunStream {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final OaiHttpClient httpClient;
+    private final String assistantOaiId;
+    private final String threadOaiId;
+
+    @FunctionalInterface
+    public interface DeltaListener {
+        void onDelta(String text) throws IOException;
+    }
+
+    /**
+     * @param runId the id of the run, null if the run.created event was not received
+     * @param message the full text of the completed message
+     */
+    public record StreamedAnswer(String runId, String messageId, String message) {}
+
+    public OaiRunStream(OaiHttpClient httpClient, String assistantOaiId, String threadOaiId) {
+        this.httpClient = httpClient;
+        this.assistantOaiId = assistantOaiId;
+        this.threadOaiId = threadOaiId;
+    }
+
+    /**
+     * Start the run and block until it ends, calling the listener for each text delta.
+     */
+    public StreamedAnswer run(DeltaListener listener) throws IOException {
+        return run(null, listener);
+    }
+
+    /**
+     * Same as run(listener) but the run first adds the user message to the thread,
+     * saving the separate create message call.
+     * @param userMessage null to run on the thread as it is
+     */
+    public StreamedAnswer run(String userMessage, DeltaListener listener) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("assistant_id", assistantOaiId);
+        body.put("stream", true);
+        if (userMessage != null) {
+            ObjectNode message = body.putArray("additional_messages").addObject();
+            message.put("role", "user");
+            message.put("content", userMessage);
+        }
+        HttpRequest request = httpClient.request("/threads/"+threadOaiId+"/runs")
+            .header("Content-Type", "application/json")
+            .header("Accept", "text/event-stream")
+            .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+            .build();
+        HttpResponse<InputStream> response = httpClient.send(
+            request, HttpResponse.BodyHandlers.ofInputStream(), Lane.interactive
+        );
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            if (response.statusCode() >= 300) {
+                StringBuilder error = new StringBuilder();
+                reader.lines().forEach(error::append);
+                throw new IOException("Run stream failed with status "+response.statusCode()+": "+error);
+            }
+            String runId = null;
+            String messageId = null;
+            StringBuilder message = new StringBuilder();
+            String event = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                    continue;
+                }
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if ("[DONE]".equals(data) || "done".equals(event)) {
+                    break;
+                }
+                JsonNode node = objectMapper.readTree(data);
+                switch (event == null ? "" : event) {
+                    case "thread.run.created" -> runId = node.path("id").asText();
+                    case "thread.message.delta" -> {
+                        for (JsonNode content : node.path("delta").path("content")) {
+                            String text = content.path("text").path("value").asText("");
+                            if (!text.isEmpty()) {
+                                message.append(text);
+                                listener.onDelta(text);
+                            }
+                        }
+                    }
+                    case "thread.message.completed" -> {
+                        // The completed message is authoritative over the concatenated deltas
+                        messageId = node.path("id").asText();
+                        JsonNode value = node.findValue("value");
+                        if (value != null) {
+                            message.setLength(0);
+                            message.append(value.isTextual() ? value.asText() : objectMapper.writeValueAsString(value));
+                        }
+                    }
+                    case "thread.run.failed", "thread.run.cancelled", "thread.run.expired", "error" ->
+                        throw new IOException("Run "+runId+" ended with "+event+": "+data);
+                    default -> { }
+                }
+            }
+            return new StreamedAnswer(runId, messageId, message.toString());
+        }
+    }
+}
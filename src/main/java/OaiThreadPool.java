@@ -0,0 +1,171 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.unbumpkin.codechat.repository.openai.ThreadPoolRepository;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Threads created ahead so a new discussion only claims one instead of waiting on createThread().
+ * A pool going under the low watermark is refilled up to the high watermark in the background,
+ * pooled threads older than max-age are deleted.
+ */
+@Service
+public class OaiThreadPool {
+    @Autowired
+    private OaiThreadService threadService;
+    @Autowired
+    private OaiHttpClient httpClient;
+    @Autowired
+    private ThreadPoolRepository threadPoolRepository;
+
+    @Value("${codechat.thread-pool.enabled:true}")
+    private boolean enabled;
+    @Value("${codechat.thread-pool.low-watermark:5}")
+    private int lowWatermark;
+    @Value("${codechat.thread-pool.high-watermark:20}")
+    private int highWatermark;
+    @Value("${codechat.thread-pool.max-age:7d}")
+    private Duration maxAge;
+    @Value("${codechat.thread-pool.reap-interval:1h}")
+    private Duration reapInterval;
+
+    private final ExecutorService refillExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thread-pool-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Pools being refilled, one refill at a time per pool
+    private final Set<Integer> refilling = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param vsid the code vector store of the assistant
+     * @return the openai id of a pooled thread now attached to the discussion, null when the pool is empty
+     */
+    public String claim(int vsid, int did) {
+        if (!enabled) {
+            return null;
+        }
+        String oaiThreadId = threadPoolRepository.claimThread(vsid, did);
+        refill(vsid);
+        return oaiThreadId;
+    }
+
+    /**
+     * Top up the pool in the background if it is under the low watermark.
+     * Called in a transaction, the refill starts once it commits: the vector store row must be visible to it.
+     */
+    public void refill(int vsid) {
+        if (!enabled) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    startRefill(vsid);
+                }
+            });
+            return;
+        }
+        startRefill(vsid);
+    }
+
+    private void startRefill(int vsid) {
+        if (!refilling.add(vsid)) {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            try {
+                int count = threadPoolRepository.countPooledThreads(vsid);
+                if (count >= lowWatermark) {
+                    return;
+                }
+                for (int i = count; i < highWatermark; i++) {
+                    // Stored one by one so they can be claimed while the others are created
+                    String oaiThreadId = threadService.createThread();
+                    if (!threadPoolRepository.addPooledThread(vsid, oaiThreadId)) {
+                        // The project was deleted, the reaper would not see this thread
+                        deleteRemoteThread(oaiThreadId);
+                        System.out.println("Thread pool of vector store "+vsid+" not refilled, its project is deleted");
+                        return;
+                    }
+                }
+                System.out.println("Thread pool of vector store "+vsid+" refilled from "+count+" to "+highWatermark);
+            } catch (Exception e) {
+                System.out.println("Thread pool refill of vector store "+vsid+" failed: "+e.getMessage());
+            } finally {
+                refilling.remove(vsid);
+            }
+        });
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        reaper.scheduleWithFixedDelay(this::reap, 0, reapInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        reaper.shutdownNow();
+        refillExecutor.shutdown();
+    }
+
+    private void reap() {
+        try {
+            List<String> expired = threadPoolRepository.deleteExpiredThreads(maxAge);
+            for (String oaiThreadId : expired) {
+                deleteRemoteThread(oaiThreadId);
+            }
+            if (!expired.isEmpty()) {
+                System.out.println(expired.size()+" pooled threads reaped");
+            }
+            // The pools left after a restart are topped up too
+            for (int vsid : threadPoolRepository.getPooledVsids()) {
+                refill(vsid);
+            }
+        } catch (Exception e) {
+            // An exception escaping the task would cancel the next runs
+            System.out.println("Thread pool reaper failed: "+e.getMessage());
+        }
+    }
+
+    private void deleteRemoteThread(String oaiThreadId) {
+        HttpRequest request = httpClient.request("/threads/"+oaiThreadId)
+            .timeout(Duration.ofSeconds(30))
+            .DELETE()
+            .build();
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(), Lane.bulk);
+            // Already gone is fine
+            if (response.statusCode() >= 300 && response.statusCode() != 404) {
+                System.out.println("Could not delete thread "+oaiThreadId+": "+response.statusCode()+" "+response.body());
+            }
+        } catch (IOException e) {
+            System.out.println("Could not delete thread "+oaiThreadId+": "+e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.unbumpkin.codechat.repository;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository;
+
+/**
+ * Project scoped deletes: the tombstone set by a delete request and the rows removed by the reaper,
+ * each table in one statement for the whole project.
+ */
+@Repository
+public class ProjectCleanupRepository {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Openai ids of the remote objects owned by a project.
+     * @param files only the uploads no other project references or claims
+     */
+    public record RemoteObjects(
+        List<String> files, List<String> vectorStores, List<String> assistants, List<String> threads
+    ) {
+        public int size() {
+            return files.size()+vectorStores.size()+assistants.size()+threads.size();
+        }
+    }
+
+    /**
+     * @return false when the project does not exist
+     */
+    public boolean tombstone(int projectId) {
+        return jdbcTemplate.update("update core.project set isdeleted=true where projectid=?", projectId) > 0;
+    }
+
+    /**
+     * @return true when the project is tombstoned, nothing new should be created for it
+     */
+    public boolean isDeleted(int projectId) {
+        Boolean deleted = jdbcTemplate.queryForObject(
+            "select exists (select 1 from core.project where projectid=? and isdeleted)", Boolean.class, projectId
+        );
+        return deleted != null && deleted;
+    }
+
+    public List<Integer> getTombstonedProjectIds() {
+        return jdbcTemplate.queryForList("select projectid from core.project where isdeleted order by projectid", Integer.class);
+    }
+
+    /**
+     * @return true while an ingestion job of the project may still create remote objects
+     */
+    public boolean hasActiveJobs(int projectId) {
+        Boolean active = jdbcTemplate.queryForObject(
+            "select exists (select 1 from core.ingestionjob where projectid=? and status in ('queued', 'running'))",
+            Boolean.class, projectId
+        );
+        return active != null && active;
+    }
+
+    public List<Integer> getResourceIds(int projectId) {
+        return jdbcTemplate.queryForList("select prid from core.projectresource where projectid=?", Integer.class, projectId);
+    }
+
+    /**
+     * Call in a transaction: the uploads of the project are locked so no claim gets in between,
+     * once the project is tombstoned its uploads cannot be claimed any more.
+     */
+    public RemoteObjects getRemoteObjects(int projectId) {
+        // Uploads with a row or a claim of the project
+        String owned = """
+            select f.oai_f_id from core.oaifile f
+            join core.projectresource pr on pr.prid=f.prid
+            where pr.projectid=?
+            union
+            select c.oai_f_id from core.oaifileclaim c
+            join core.projectresource pr on pr.prid=c.prid
+            where pr.projectid=?
+            """;
+        jdbcTemplate.query(OaiFileReferenceRepository.lockFilesSql(owned), rs -> {}, projectId, projectId);
+        List<String> files = jdbcTemplate.queryForList("""
+            select o.oai_f_id from (%s) o
+            where not exists (
+                select 1 from core.oaifile other
+                join core.projectresource otherpr on otherpr.prid=other.prid
+                where other.oai_f_id=o.oai_f_id and otherpr.projectid<>?
+            ) and not exists (
+                select 1 from core.oaifileclaim other
+                join core.projectresource otherpr on otherpr.prid=other.prid
+                where other.oai_f_id=o.oai_f_id and otherpr.projectid<>?
+            )
+            """.formatted(owned), String.class, projectId, projectId, projectId, projectId
+        );
+        List<String> vectorStores = jdbcTemplate.queryForList(
+            "select oai_vs_id from core.vectorstore where projectid=?", String.class, projectId
+        );
+        List<String> assistants = jdbcTemplate.queryForList("""
+            select oai_aid from core.assistant where projectid=?
+            union
+            select oai_aid from core.socialassistant where projectid=?
+            """, String.class, projectId, projectId
+        );
+        // Threads of the discussions and the pooled threads of the project vector stores
+        List<String> threads = jdbcTemplate.queryForList("""
+            select oai_threadid from core.thread
+            where did in (select did from core.discussion where projectid=?)
+            or vsid in (select vsid from core.vectorstore where projectid=?)
+            """, String.class, projectId, projectId
+        );
+        return new RemoteObjects(files, vectorStores, assistants, threads);
+    }
+
+    /**
+     * Delete the rows of the project and of everything under it, call in a transaction.
+     * The chunks and symbols are removed by their services.
+     */
+    public void deleteProjectRows(int projectId) {
+        String discussions = "(select did from core.discussion where projectid=?)";
+        String vectorStores = "(select vsid from core.vectorstore where projectid=?)";
+        String resources = "(select prid from core.projectresource where projectid=?)";
+        jdbcTemplate.update("delete from core.message where did in "+discussions, projectId);
+        jdbcTemplate.update("delete from core.discussionsummary where did in "+discussions, projectId);
+        jdbcTemplate.update(
+            "delete from core.thread where did in "+discussions+" or vsid in "+vectorStores, projectId, projectId
+        );
+        jdbcTemplate.update("delete from core.discussion where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.assistant where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.socialassistant where projectid=?", projectId);
+        jdbcTemplate.update(
+            "delete from core.vectorstore_oaifile where vsid in "+vectorStores
+            +" or fid in (select fid from core.oaifile where prid in "+resources+")", projectId, projectId
+        );
+        jdbcTemplate.update("delete from core.vectorstore where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.oaifile where prid in "+resources, projectId);
+        jdbcTemplate.update("delete from core.oaifileclaim where prid in "+resources, projectId);
+        jdbcTemplate.update("delete from core.ingestioncheckpoint where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.ingestionjob where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.usersecret where prid in "+resources, projectId);
+        jdbcTemplate.update("delete from core.socialuser where prid in "+resources, projectId);
+        jdbcTemplate.update("delete from core.socialchannel where prid in "+resources, projectId);
+        jdbcTemplate.update("delete from core.projectresource where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.sharedproject where projectid=?", projectId);
+        jdbcTemplate.update("delete from core.project where projectid=?", projectId);
+    }
+}
@@ -0,0 +1,232 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.unbumpkin.codechat.repository.ProjectCleanupRepository;
+import com.unbumpkin.codechat.repository.ProjectCleanupRepository.RemoteObjects;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+import com.unbumpkin.codechat.service.openai.QuestionRouter;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Deletes projects in the background. A delete request only tombstones the project (project.isdeleted),
+ * the reaper then deletes its remote files, vector stores, assistants and threads concurrently on the bulk lane
+ * of OaiHttpClient, and its rows once every remote object is gone. A project whose remote deletes failed keeps
+ * its tombstone and its rows, the next reap tries again: nothing is left without a row pointing at it.
+ * Nothing new is created for a tombstoned project, and the rows are only deleted if no remote object
+ * appeared since the snapshot of the reap.
+ */
+@Service
+public class ProjectCleanupService {
+    private static final long RETRY_DELAY_MS = 1_000;
+
+    @Autowired
+    private ProjectCleanupRepository cleanupRepository;
+    @Autowired
+    private RepositoryMirror repositoryMirror;
+    @Autowired
+    private LocalRetrievalService localRetrievalService;
+    @Autowired
+    private SymbolIndexService symbolIndexService;
+    @Autowired
+    private AnswerCache answerCache;
+    @Autowired
+    private AnswerReferenceResolver referenceResolver;
+    @Autowired
+    private DiscussionMetadataCache metadataCache;
+    @Autowired
+    private QuestionRouter questionRouter;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private OaiHttpClient httpClient;
+
+    @Value("${codechat.cleanup.reap-interval:5m}")
+    private Duration reapInterval;
+    // Remote deletes in flight for one project
+    @Value("${codechat.cleanup.concurrency:16}")
+    private int concurrency;
+    @Value("${codechat.cleanup.max-attempts:3}")
+    private int maxAttempts;
+
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "project-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Hide the project and schedule its deletion.
+     * @return false when the project does not exist
+     */
+    public boolean deleteProject(int projectId) {
+        if (!cleanupRepository.tombstone(projectId)) {
+            return false;
+        }
+        answerCache.invalidateProject(projectId);
+        metadataCache.invalidateProject(projectId);
+        questionRouter.invalidateProject(projectId);
+        reaper.execute(this::reap);
+        return true;
+    }
+
+    /**
+     * @return true when the project is waiting for the reaper
+     */
+    public boolean isDeleted(int projectId) {
+        return cleanupRepository.isDeleted(projectId);
+    }
+
+    @PostConstruct
+    void start() {
+        // Also picks up the projects tombstoned before a restart
+        reaper.scheduleWithFixedDelay(this::reap, 0, reapInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        reaper.shutdownNow();
+    }
+
+    private void reap() {
+        List<Integer> projectIds;
+        try {
+            projectIds = cleanupRepository.getTombstonedProjectIds();
+        } catch (Exception e) {
+            // An exception escaping the task would cancel the next runs
+            System.out.println("Project reaper failed: "+e.getMessage());
+            return;
+        }
+        for (int projectId : projectIds) {
+            try {
+                if (cleanupRepository.hasActiveJobs(projectId)) {
+                    System.out.println("Project "+projectId+" still has a running ingestion, deleted later");
+                    continue;
+                }
+                reapProject(projectId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                System.out.println("Deletion of project "+projectId+" failed, retried on the next reap: "+e.getMessage());
+            }
+        }
+    }
+
+    private void reapProject(int projectId) throws Exception {
+        long started = System.currentTimeMillis();
+        List<String> paths = remotePaths(transactionTemplate.execute(status -> cleanupRepository.getRemoteObjects(projectId)));
+
+        AtomicInteger failed = new AtomicInteger();
+        Semaphore permits = new Semaphore(concurrency);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Callable<Void>> tasks = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                tasks.add(() -> {
+                    permits.acquire();
+                    try {
+                        if (!deleteRemote(path)) {
+                            failed.incrementAndGet();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                });
+            }
+            executor.invokeAll(tasks);
+        }
+        if (failed.get() > 0) {
+            System.out.println(failed.get()+" of "+paths.size()+" remote objects of project "+projectId+" not deleted, retried on the next reap");
+            return;
+        }
+
+        localRetrievalService.removeProject(projectId);
+        symbolIndexService.removeProject(projectId);
+        for (int prId : cleanupRepository.getResourceIds(projectId)) {
+            repositoryMirror.deleteMirror(prId);
+        }
+        // Objects created while the snapshot was deleted, by a request started before the tombstone, keep their rows
+        Set<String> deleted = new HashSet<>(paths);
+        List<String> created = transactionTemplate.execute(status -> {
+            List<String> current = remotePaths(cleanupRepository.getRemoteObjects(projectId));
+            current.removeAll(deleted);
+            if (current.isEmpty()) {
+                cleanupRepository.deleteProjectRows(projectId);
+            }
+            return current;
+        });
+        if (!created.isEmpty()) {
+            System.out.println(created.size()+" remote objects of project "+projectId+" created during its deletion, retried on the next reap");
+            return;
+        }
+        answerCache.invalidateProject(projectId);
+        metadataCache.invalidateProject(projectId);
+        referenceResolver.invalidateProject(projectId);
+        questionRouter.invalidateProject(projectId);
+        System.out.println("Project "+projectId+" deleted with its "+paths.size()+" remote objects in "
+            +(System.currentTimeMillis()-started)+" ms");
+    }
+
+    private static List<String> remotePaths(RemoteObjects remote) {
+        List<String> paths = new ArrayList<>(remote.size());
+        remote.files().forEach(id -> paths.add("/files/"+id));
+        remote.vectorStores().forEach(id -> paths.add("/vector_stores/"+id));
+        remote.assistants().forEach(id -> paths.add("/assistants/"+id));
+        remote.threads().forEach(id -> paths.add("/threads/"+id));
+        return paths;
+    }
+
+    /**
+     * Rate limits are waited out by OaiHttpClient, server and network errors are retried here.
+     * @return true when the object is deleted or was already gone
+     */
+    private boolean deleteRemote(String path) throws InterruptedException {
+        HttpRequest request = httpClient.request(path)
+            .timeout(Duration.ofSeconds(30))
+            .DELETE()
+            .build();
+        String error = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(), Lane.bulk);
+                if (response.statusCode() < 300 || response.statusCode() == 404) {
+                    return true;
+                }
+                error = response.statusCode()+" "+response.body();
+                if (response.statusCode() < 500) {
+                    break;
+                }
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            if (attempt < maxAttempts) {
+                Thread.sleep(RETRY_DELAY_MS*attempt);
+            }
+        }
+        System.out.println("Could not delete "+path+": "+error);
+        return false;
+    }
+}
@@ -0,0 +1,705 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.unbumpkin.codechat.dto.request.CreateVSFileRequest;
+import com.unbumpkin.codechat.model.IngestionJob.Stages;
+import com.unbumpkin.codechat.model.ProjectResource;
+import com.unbumpkin.codechat.model.UserSecret;
+import com.unbumpkin.codechat.model.UserSecret.Labels;
+import com.unbumpkin.codechat.model.openai.Assistant;
+import com.unbumpkin.codechat.model.openai.VectorStore;
+import com.unbumpkin.codechat.repository.IngestionCheckpointRepository;
+import com.unbumpkin.codechat.repository.ProjectResourceRepository;
+import com.unbumpkin.codechat.repository.IngestionCheckpointRepository.Checkpoint;
+import com.unbumpkin.codechat.repository.IngestionCheckpointRepository.ProjectVectorStore;
+import com.unbumpkin.codechat.repository.openai.AssistantRepository;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.FileReference;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.ReleasedFile;
+import com.unbumpkin.codechat.repository.openai.VectorStoreRepository;
+import com.unbumpkin.codechat.repository.openai.VectorStoreRepository.RepoVectorStoreResponse;
+import com.unbumpkin.codechat.service.IngestionJobService.JobProgress;
+import com.unbumpkin.codechat.service.IngestionPipeline.IngestedFile;
+import com.unbumpkin.codechat.service.RepositoryIndex.IndexedFile;
+import com.unbumpkin.codechat.service.RepositoryMirror.Changes;
+import com.unbumpkin.codechat.service.RepositoryMirror.Rename;
+import com.unbumpkin.codechat.service.openai.AssistantBuilder;
+import com.unbumpkin.codechat.service.openai.AssistantService;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager;
+import com.unbumpkin.codechat.service.openai.GithubRepoContentManager;
+import com.unbumpkin.codechat.service.openai.OaiFileUploadCache;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient;
+import com.unbumpkin.codechat.service.openai.OaiThreadPool;
+import com.unbumpkin.codechat.service.openai.QuestionRouter;
+import com.unbumpkin.codechat.service.openai.VectorStoreFile;
+import com.unbumpkin.codechat.service.openai.VectorStoreFileBatch;
+import com.unbumpkin.codechat.service.openai.VectorStoreService;
+import com.unbumpkin.codechat.service.openai.AssistantBuilder.ReasoningEffort;
+import com.unbumpkin.codechat.service.openai.BaseOpenAIClient.Models;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+
+import static com.unbumpkin.codechat.service.openai.CCProjectFileManager.getFileType;
+
+/**
+ * The create-project and refresh-repo work, run by IngestionJobService.
+ * Nothing here holds a transaction across remote calls: the rows of each stage
+ * are written in their own short transaction once the stage remote work is done.
+ */
+@Service
+public class ProjectIngestionService {
+    @Autowired
+    private AssistantRepository assistantRepository;
+    @Autowired
+    private OaiFileReferenceRepository oaiFileReferenceRepository;
+    @Autowired
+    private VectorStoreRepository vsRepository;
+    @Autowired
+    private VectorStoreService vsService;
+    @Autowired
+    private AssistantService assistantService;
+    @Autowired
+    private ProjectResourceRepository projectResourceRepository;
+    @Autowired
+    private IngestionPipeline ingestionPipeline;
+    @Autowired
+    private OaiFileUploadCache uploadCache;
+    @Autowired
+    private OaiHttpClient httpClient;
+    @Autowired
+    private OaiThreadPool threadPool;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    @Autowired
+    private IngestionCheckpointRepository checkpointRepository;
+    @Autowired
+    private RepositoryMirror repositoryMirror;
+    @Autowired
+    private LocalRetrievalService localRetrievalService;
+    @Autowired
+    private SymbolIndexService symbolIndexService;
+    @Autowired
+    private AnswerCache answerCache;
+    @Autowired
+    private AnswerReferenceResolver referenceResolver;
+    @Autowired
+    private QuestionRouter questionRouter;
+
+    // Number of files uploaded and attached before the next ones are read
+    @Value("${codechat.ingestion.window-size:200}")
+    private int windowSize;
+
+    public void createProject(
+        JobProgress progress, int projectId, String name, String repoURL, String branch,
+        String username, String password
+    ) throws Exception {
+        GithubRepoContentManager pfc=new GithubRepoContentManager(username, password);
+        try{
+            progress.stage(Stages.clone, 1);
+            String sourcePath=pfc.addRepository(repoURL, branch);
+            //Create project resource
+            Map<Labels,UserSecret> userSecrets = new HashMap<>();
+            if(username!=null && !username.isEmpty()){
+                userSecrets.put(Labels.username, new UserSecret(Labels.username, username));
+                userSecrets.put(Labels.password, new UserSecret(Labels.password, password));
+            }
+            userSecrets.put(Labels.branch, new UserSecret(Labels.branch, branch));
+            userSecrets.put(Labels.commitHash, new UserSecret(Labels.commitHash, pfc.getCommitHash()));
+            ProjectResource pr=projectResourceRepository.createResource(projectId, repoURL, userSecrets);
+            ingest(progress, projectId, name, pr.prId(), sourcePath);
+        } finally {
+            pfc.deleteRepository();
+        }
+    }
+
+    /**
+     * @return true once the project resource, with its credentials, is stored
+     */
+    public boolean hasResources(int projectId) {
+        return !projectResourceRepository.getResources(projectId).isEmpty();
+    }
+
+    /**
+     * Resume a failed createProject: the files of the commit stored by the failed job are written from the
+     * resource mirror, the branch head may have moved since. Files found in core.ingestioncheckpoint
+     * are neither uploaded nor attached again.
+     */
+    public void resumeProject(JobProgress progress, int projectId, Map<String,String> params) throws Exception {
+        List<ProjectResource> resources = projectResourceRepository.getResources(projectId);
+        if (resources.isEmpty()) {
+            // Failed before the clone completed, only possible to start over without credentials
+            if ("true".equals(params.get("credentials"))) {
+                throw new IllegalStateException("Project "+projectId+" needs credentials that were never stored, create it again");
+            }
+            createProject(progress, projectId, params.get("name"), params.get("repoURL"), params.get("branch"), null, null);
+            return;
+        }
+        ProjectResource resource = resources.get(0);
+        String commitHash = resource.secrets().get(Labels.commitHash).value();
+        progress.stage(Stages.clone, 1);
+        repositoryMirror.fetch(resource);
+        List<String> paths = new ArrayList<>();
+        for (String path : repositoryMirror.listFiles(resource.prId(), commitHash)) {
+            addIfIndexed(paths, path);
+        }
+        Path workDir = repositoryMirror.materialize(resource.prId(), commitHash, paths);
+        try {
+            ingest(progress, projectId, params.get("name"), resource.prId(), workDir.toString());
+        } finally {
+            repositoryMirror.deleteWorkDir(workDir);
+        }
+    }
+
+    /**
+     * Upload and attach the files window by window: a window is only read once the previous one
+     * is uploaded, attached and checkpointed, so memory does not grow with the size of the repository.
+     */
+    private void ingest(
+        JobProgress progress, int projectId, String name, int prId, String sourcePath
+    ) throws IOException {
+        progress.stage(Stages.classify, 1);
+        // One walk classifies every file and reads its line count and hash
+        RepositoryIndex index = RepositoryIndex.build(sourcePath);
+        int basePathLength = index.getRoot().toString().length();
+        Map<Types,List<IndexedFile>> fileSets = new LinkedHashMap<>();
+        for (Types type : List.of(Types.code, Types.markup, Types.config)) {
+            fileSets.put(type, index.getFiles(type));
+        }
+        progress.advance();
+
+        // The vector stores are created first so each window can be attached as soon as it is uploaded
+        Map<Types,ProjectVectorStore> stores = checkpointRepository.getProjectVectorStores(projectId);
+        createMissingVectorStore(projectId, "vsCode", Types.code, stores);
+        createMissingVectorStore(projectId, "vsMarkup", Types.markup, stores);
+        createMissingVectorStore(projectId, "vsConfig", Types.config, stores);
+        createMissingVectorStore(projectId, "vsAll", Types.all, stores);
+        questionRouter.invalidateProject(projectId);
+
+        int total = fileSets.values().stream().mapToInt(List::size).sum();
+        progress.stage(Stages.upload, total);
+        int done = 0;
+        for (Types type : fileSets.keySet()) {
+            System.out.println("Uploading and attaching "+type.name()+" files...");
+            List<IndexedFile> window = new ArrayList<>(windowSize);
+            Iterator<IndexedFile> files = fileSets.get(type).iterator();
+            while (files.hasNext()) {
+                window.add(files.next());
+                if (window.size() == windowSize || !files.hasNext()) {
+                    ingestWindow(projectId, prId, window, basePathLength, type, stores.get(type), stores.get(Types.all));
+                    done += window.size();
+                    progress.setProgress(done);
+                    window.clear();
+                }
+            }
+        }
+
+        progress.stage(Stages.assistant, 1);
+        if (checkpointRepository.hasAssistant(projectId)) {
+            System.out.println("Assistant already created for project "+projectId);
+        } else {
+            //Here the order is important because the assistant will use the vector stores in this order
+            // Code, Markup, Config, then All
+            Map<String,Integer> vectorStorMap = new LinkedHashMap<>();
+            for (Types type : List.of(Types.code, Types.markup, Types.config, Types.all)) {
+                vectorStorMap.put(stores.get(type).oaiVsId(), stores.get(type).vsId());
+            }
+            System.out.println("Create assistant...");
+            int assistantId=createAssistant(name, projectId, vectorStorMap, stores.get(Types.all).oaiVsId());
+            System.out.println("Assistant created with id: "+assistantId);
+        }
+        // The first discussion should not wait on a thread either
+        threadPool.refill(stores.get(Types.code).vsId());
+        checkpointRepository.deleteCheckpoints(prId);
+    }
+
+    private void ingestWindow(
+        int projectId, int prId, List<IndexedFile> window, int basePathLength, Types type,
+        ProjectVectorStore typeStore, ProjectVectorStore allStore
+    ) throws IOException {
+        List<String> paths = new ArrayList<>(window.size());
+        for (IndexedFile file : window) {
+            paths.add(file.relativePath());
+        }
+        Map<String,Checkpoint> checkpoints = checkpointRepository.getCheckpoints(prId, paths);
+        List<IndexedFile> toUpload = new ArrayList<>();
+        for (IndexedFile file : window) {
+            if (!checkpoints.containsKey(file.relativePath())) {
+                toUpload.add(file);
+            }
+        }
+        if (!toUpload.isEmpty()) {
+            // Before the upload, which renames the files
+            if (localRetrievalService.isEnabled()) {
+                localRetrievalService.indexFiles(projectId, prId, toUpload);
+            }
+            if (symbolIndexService.isEnabled()) {
+                symbolIndexService.indexFiles(projectId, prId, toUpload);
+            }
+            List<IngestedFile> ingested = ingestionPipeline.ingest(projectId, prId, toUpload, basePathLength, null);
+            List<FileReference> references = new ArrayList<>(ingested.size());
+            List<Checkpoint> newCheckpoints = new ArrayList<>(ingested.size());
+            for (int i = 0; i < ingested.size(); i++) {
+                IngestedFile file = ingested.get(i);
+                Checkpoint checkpoint = new Checkpoint(
+                    toUpload.get(i).relativePath(), file.fileId(), type, file.request().attributes(), false
+                );
+                references.add(file.reference());
+                newCheckpoints.add(checkpoint);
+                checkpoints.put(checkpoint.filePath(), checkpoint);
+            }
+            transactionTemplate.executeWithoutResult(status -> {
+                oaiFileReferenceRepository.storeReferences(references);
+                checkpointRepository.addCheckpoints(projectId, prId, newCheckpoints);
+            });
+        }
+
+        List<CreateVSFileRequest> requests = new ArrayList<>();
+        List<String> fileIds = new ArrayList<>();
+        List<String> attachedPaths = new ArrayList<>();
+        for (Checkpoint checkpoint : checkpoints.values()) {
+            if (!checkpoint.attached()) {
+                requests.add(new CreateVSFileRequest(checkpoint.oaiFileId(), new HashMap<>(checkpoint.attributes())));
+                fileIds.add(checkpoint.oaiFileId());
+                attachedPaths.add(checkpoint.filePath());
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        new VectorStoreFileBatch(httpClient, typeStore.oaiVsId()).addFiles(requests);
+        new VectorStoreFileBatch(httpClient, allStore.oaiVsId()).addFiles(requests);
+        transactionTemplate.executeWithoutResult(status -> {
+            oaiFileReferenceRepository.attachToVectorStore(typeStore.oaiVsId(), prId, fileIds);
+            oaiFileReferenceRepository.attachToVectorStore(allStore.oaiVsId(), prId, fileIds);
+            checkpointRepository.markAttached(prId, attachedPaths);
+        });
+        System.out.println(requests.size()+" files added to vector stores "+typeStore.oaiVsId()+" and "+allStore.oaiVsId());
+    }
+
+    /**
+     * A resource being refreshed, filled stage by stage.
+     */
+    private static class ResourceRefresh {
+        final ProjectResource resource;
+        String commitHash;
+        Changes changes;
+        Path workDir;
+        List<IndexedFile> toUpload = new ArrayList<>();
+        // Uploads of modified files, detached once their new content is attached
+        List<FileReference> replacedFiles = new ArrayList<>();
+        List<IngestedFile> ingested = List.of();
+
+        ResourceRefresh(ProjectResource resource) {
+            this.resource = resource;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResourceTask {
+        void run(ResourceRefresh refresh) throws Exception;
+    }
+
+    /**
+     * Fetch each resource into its mirror and ingest the files changed since the stored commit,
+     * only the changed files are written to disk. The resources are refreshed concurrently, stage by stage.
+     * Exact renames keep their upload, only their vector store attributes change.
+     */
+    public void refreshRepo(JobProgress progress, int projectId) throws Exception {
+        Map<Types,RepoVectorStoreResponse> vsMap = CCProjectFileManager.getVectorStoretMap(
+            vsRepository.getVectorStoresByProjectId(projectId)
+        );
+        Map<Types,VectorStoreFile> vsfServicesMap = new HashMap<>(3);
+        vsfServicesMap.put(Types.code, new VectorStoreFile(vsMap.get(Types.code).vsid()));
+        vsfServicesMap.put(Types.config, new VectorStoreFile(vsMap.get(Types.config).vsid()));
+        vsfServicesMap.put(Types.markup, new VectorStoreFile(vsMap.get(Types.markup).vsid()));
+        VectorStoreFile vsfServicesAll = new VectorStoreFile(vsMap.get(Types.all).vsid());
+
+        List<ResourceRefresh> refreshes = new ArrayList<>();
+        for (ProjectResource resource : projectResourceRepository.getResources(projectId)) {
+            if (resource.uri() != null) {
+                refreshes.add(new ResourceRefresh(resource));
+            }
+        }
+        try {
+            progress.stage(Stages.clone, refreshes.size());
+            forEachResource(refreshes, refresh -> {
+                String oldCommitHash=refresh.resource.secrets().get(Labels.commitHash).value();
+                refresh.commitHash=repositoryMirror.fetch(refresh.resource);
+                if(refresh.commitHash.equals(oldCommitHash)){
+                    System.out.println("No changes in the repo "+refresh.resource.uri());
+                } else {
+                    refresh.changes=repositoryMirror.getChanges(refresh.resource.prId(), oldCommitHash, refresh.commitHash);
+                }
+                progress.advance();
+            });
+            List<ResourceRefresh> changed = refreshes.stream().filter(refresh -> refresh.changes != null).toList();
+
+            progress.stage(Stages.classify, changed.stream().mapToInt(refresh ->
+                refresh.changes.deletedFiles().size()+refresh.changes.modifiedFiles().size()+refresh.changes.renamedFiles().size()
+            ).sum());
+            forEachResource(changed, refresh -> classify(projectId, refresh, progress, vsMap, vsfServicesMap, vsfServicesAll));
+
+            progress.stage(Stages.upload, changed.stream().mapToInt(refresh -> refresh.toUpload.size()).sum());
+            forEachResource(changed, refresh -> {
+                refresh.ingested = ingestionPipeline.ingest(
+                    projectId, refresh.resource.prId(), refresh.toUpload, refresh.workDir.toString().length(),
+                    (done, total) -> progress.advance()
+                );
+                storeReferences(refresh.ingested);
+            });
+
+            progress.stage(Stages.attach, changed.size());
+            forEachResource(changed, refresh -> {
+                Map<Types,List<CreateVSFileRequest>> typeRequests = new HashMap<>(3);
+                List<CreateVSFileRequest> allRequests = new ArrayList<>(refresh.ingested.size());
+                for (IngestedFile file : refresh.ingested) {
+                    typeRequests.computeIfAbsent(file.type(), k -> new ArrayList<>()).add(file.request());
+                    allRequests.add(file.request());
+                }
+                for (Types fileType : typeRequests.keySet()) {
+                    new VectorStoreFileBatch(httpClient, vsMap.get(fileType).vsid()).addFiles(typeRequests.get(fileType));
+                    System.out.println(typeRequests.get(fileType).size()+" files added to "+fileType.toString()+" vector store ");
+                }
+                new VectorStoreFileBatch(httpClient, vsMap.get(Types.all).vsid()).addFiles(allRequests);
+                detachFiles(refresh.replacedFiles, refresh.resource.prId(), vsfServicesMap, vsfServicesAll);
+                projectResourceRepository.updateSecret(refresh.resource.prId(), Labels.commitHash, refresh.commitHash);
+                progress.advance();
+            });
+            if (!changed.isEmpty()) {
+                answerCache.invalidateProject(projectId);
+                // Replaced files get new ids, their old links are dropped with the project
+                referenceResolver.invalidateProject(projectId);
+            }
+            questionRouter.invalidateProject(projectId);
+        } finally {
+            for (ResourceRefresh refresh : refreshes) {
+                if (refresh.workDir != null) {
+                    repositoryMirror.deleteWorkDir(refresh.workDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Detach the deleted files, apply the exact renames and read the files to upload from the mirror.
+     */
+    private void classify(
+        int projectId, ResourceRefresh refresh, JobProgress progress, Map<Types,RepoVectorStoreResponse> vsMap,
+        Map<Types,VectorStoreFile> vsfServicesMap, VectorStoreFile vsfServicesAll
+    ) throws IOException {
+        int prId = refresh.resource.prId();
+        Changes changes = refresh.changes;
+        // The stored references of all the changed paths in one query
+        List<String> storedPaths = new ArrayList<>(changes.deletedFiles());
+        storedPaths.addAll(changes.modifiedFiles());
+        for (Rename rename : changes.renamedFiles()) {
+            storedPaths.add(rename.oldPath());
+        }
+        Map<String,FileReference> stored = oaiFileReferenceRepository.getReferencesByPaths(prId, storedPaths);
+        List<FileReference> detached = new ArrayList<>();
+        for (String deletedFile : changes.deletedFiles()) {
+            FileReference oaiFile = stored.get(deletedFile);
+            if(oaiFile!=null){
+                detached.add(oaiFile);
+            }
+            progress.advance();
+        }
+
+        List<String> paths = new ArrayList<>();
+        for (String path : changes.addedFiles()) {
+            addIfIndexed(paths, path);
+        }
+        for (String path : changes.modifiedFiles()) {
+            addIfIndexed(paths, path);
+        }
+        for (Rename rename : changes.renamedFiles()) {
+            addIfIndexed(paths, rename.newPath());
+        }
+        refresh.workDir = repositoryMirror.materialize(prId, refresh.commitHash, paths);
+        RepositoryIndex index = RepositoryIndex.build(refresh.workDir.toString(), paths);
+        if (localRetrievalService.isEnabled()) {
+            List<String> removedUris = new ArrayList<>();
+            for (String path : changes.deletedFiles()) {
+                removedUris.add(LocalRetrievalService.fileUri(prId, path));
+            }
+            for (Rename rename : changes.renamedFiles()) {
+                removedUris.add(LocalRetrievalService.fileUri(prId, rename.oldPath()));
+            }
+            localRetrievalService.removeUris(projectId, removedUris);
+            localRetrievalService.indexFiles(projectId, prId, index.getFiles());
+        }
+        if (symbolIndexService.isEnabled()) {
+            List<String> removedPaths = new ArrayList<>(changes.deletedFiles());
+            for (Rename rename : changes.renamedFiles()) {
+                removedPaths.add(rename.oldPath());
+            }
+            symbolIndexService.removeFiles(projectId, prId, removedPaths);
+            symbolIndexService.indexFiles(projectId, prId, index.getFiles());
+        }
+
+        for (String path : changes.addedFiles()) {
+            IndexedFile file = index.getFile(path);
+            if (file != null) {
+                refresh.toUpload.add(file);
+            }
+        }
+        for (String path : changes.modifiedFiles()) {
+            IndexedFile file = index.getFile(path);
+            FileReference oaiFile = stored.get(path);
+            if (oaiFile != null && file != null && file.contentHash().equals(oaiFile.contentHash())) {
+                // Only the file mode changed
+                progress.advance();
+                continue;
+            }
+            if (oaiFile != null) {
+                refresh.replacedFiles.add(oaiFile);
+            }
+            if (file != null) {
+                refresh.toUpload.add(file);
+            }
+            progress.advance();
+        }
+        for (Rename rename : changes.renamedFiles()) {
+            IndexedFile file = index.getFile(rename.newPath());
+            FileReference oaiFile = stored.get(rename.oldPath());
+            if (oaiFile != null && file != null && getFileType(oaiFile.fileName()) == file.type()) {
+                Map<String,String> attributes = IngestionPipeline.attributes(file);
+                new VectorStoreFileBatch(httpClient, vsMap.get(file.type()).vsid()).updateAttributes(oaiFile.oaiFileId(), attributes);
+                new VectorStoreFileBatch(httpClient, vsMap.get(Types.all).vsid()).updateAttributes(oaiFile.oaiFileId(), attributes);
+                oaiFileReferenceRepository.moveReference(prId, rename.oldPath(), file.name(), rename.newPath());
+                System.out.println(rename.oldPath()+" renamed to "+rename.newPath()+" id "+oaiFile.oaiFileId());
+            } else {
+                // The type changed or the file is no longer ingested
+                if (oaiFile != null) {
+                    detached.add(oaiFile);
+                }
+                if (file != null) {
+                    refresh.toUpload.add(file);
+                }
+            }
+            progress.advance();
+        }
+        detachFiles(detached, prId, vsfServicesMap, vsfServicesAll);
+    }
+
+    private static void addIfIndexed(List<String> paths, String path) {
+        if (RepositoryIndex.isIndexed(Path.of(path).getFileName().toString())) {
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Release the references of the files with a single delete, remove from the vector stores
+     * the uploads no other file of the project uses, then delete the uploads nothing uses.
+     */
+    private void detachFiles(
+        List<FileReference> files, int prId, Map<Types,VectorStoreFile> vsfServicesMap, VectorStoreFile vsfServicesAll
+    ) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        Map<String,FileReference> byFileId = new HashMap<>(files.size());
+        for (FileReference file : files) {
+            byFileId.put(file.oaiFileId(), file);
+        }
+        // Other projects may still use the same uploads
+        List<ReleasedFile> released = uploadCache.releaseFiles(prId, files);
+        int detached = 0;
+        for (ReleasedFile releasedFile : released) {
+            if (!releasedFile.detached()) {
+                continue;
+            }
+            FileReference file = byFileId.get(releasedFile.oaiFileId());
+            Types fileType=getFileType(file.fileName());
+            vsfServicesMap.get(fileType).removeFile(file.oaiFileId());
+            vsfServicesAll.removeFile(file.oaiFileId());
+            detached++;
+            System.out.println(file.filePath()+" id "+file.oaiFileId()+" removed from "+fileType.toString()+" vector store.");
+        }
+        int deleted = uploadCache.deleteUnreferenced(released);
+        System.out.println(files.size()+" files released, "+detached+" uploads detached, "+deleted+" deleted.");
+    }
+
+    /**
+     * Run the task for each resource on its own virtual thread, the first failure cancels the others.
+     */
+    private void forEachResource(List<ResourceRefresh> refreshes, ResourceTask task) throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Void>> futures = new ArrayList<>(refreshes.size());
+            for (ResourceRefresh refresh : refreshes) {
+                futures.add(executor.submit(() -> {
+                    task.run(refresh);
+                    return null;
+                }));
+            }
+            try {
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                futures.forEach(future -> future.cancel(true));
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+    }
+
+    private void storeReferences(List<IngestedFile> ingested) {
+        List<FileReference> references = new ArrayList<>(ingested.size());
+        for (IngestedFile file : ingested) {
+            references.add(file.reference());
+        }
+        transactionTemplate.executeWithoutResult(status -> oaiFileReferenceRepository.storeReferences(references));
+    }
+
+    private void createMissingVectorStore(
+        int projectId, String vsName, Types type, Map<Types,ProjectVectorStore> stores
+    ) throws IOException {
+        if (stores.containsKey(type)) {
+            return;
+        }
+        String vsDesc = type == Types.all
+            ? "contain all the files in the project."
+            : "contain the "+type.name()+" files in the project.";
+        String vsOaiId = vsService.createVectorStore(
+            new VectorStore(vsName, vsDesc, null,null,null,null)
+        );
+        //(int vsId, String oaiVsId, String vsname, String vsdesc, Instant created, Integer dayskeep, Types type)
+        int vsId=vsRepository.storeVectorStore(new VectorStore(0, vsOaiId, projectId, vsName, vsDesc, null, type));
+        System.out.println("Vector store "+type.name()+" created with id: "+vsId+" and OaiId: "+vsOaiId);
+        stores.put(type, new ProjectVectorStore(vsId, vsOaiId, type));
+    }
+
+    public int createAssistant(
+        String name, int projectId, Map<String,Integer> vectorStorMap, String vsAllOaiId
+    ) throws IOException {
+        AssistantBuilder assistantBuilder = new AssistantBuilder(Models.o3_mini);
+
+        assistantBuilder.setName(name)
+            .setDescription("Code search assistant for " + name)
+            .setInstructions("""
+                You are a code search assistant designed to help users analyze and understand their projects. Your primary role is to provide detailed explanations, code snippets, and actionable suggestions based on the project's files and metadata.
+
+                Always respond in the following structured JSON format, and do not prefix with ```<language>:
+                {
+                    "answers": [
+                        {
+                            "explanation": "<Detailed explanation>",
+                            "language": "<Programming language (if applicable)>",
+                            "code": "<Formatted code snippet (if applicable)>",
+                            "codeExplanation": "<Explanation of the code snippet (if applicable)>",
+                            "references": ["<Relevant sources>"]
+                        }
+                        // Add more answers as needed
+                    ],
+                    "conversationalGuidance": "<Additional guidance for the user: Intelligent Follow-ups, Actionable Suggestions, Engagement & Clarifications, etc.>"
+                }
+
+
+                Use plain text in the response.
+                Markdown is supported in the explanation, code explanation, and reference fields.
+
+                ### File Metadata Usage
+                When analyzing files, use the following attributes from the file metadata to provide insights and context:
+                - **`name`**: Use the file name to identify the file and provide context in your response.
+                - **`path`**: Use the file's relative path to locate it within the project and reference it in your response.
+                - **`extension`**: Use the file extension to determine the programming language or file type (e.g., `java` for Java, `py` for Python).
+                - **`mime-type`**: Use the MIME type to understand the file's format or content type (e.g., `text/plain`, `application/json`).
+                - **`nbLines`**: Use the number of lines in the file to assess its size or complexity. For example:
+                - Small files (e.g., <50 lines) may be utility scripts or configuration files.
+                - Large files (e.g., >500 lines) may indicate complex logic or large datasets.
+                - **`type`**: Use the file type (e.g., `code`, `markup`, `config`) to tailor your analysis and suggestions. For example:
+                - For `code` files, focus on programming logic, structure, and potential improvements.
+                - For `markup` files, focus on formatting, structure, and content organization.
+                - For `config` files, focus on configuration correctness and best practices.
+
+                ### Analyzing Files
+                - Use the `extension` and `mime-type` attributes to determine the programming language or file type. For example:
+                - `java` → Java
+                - `py` → Python
+                - `html` → HTML
+                - Use the `nbLines` attribute to assess the file's complexity and provide insights. For example:
+                - "This file contains 120 lines of Java code, which suggests it implements a moderately complex class."
+                - Use the `type` attribute to guide your analysis. For example:
+                - For `code` files, analyze the logic, structure, and potential improvements.
+                - For `markup` files, analyze the formatting and content organization.
+                - For `config` files, analyze the correctness and adherence to best practices.
+
+                ### Referencing Files
+                - Donot use the internal name, always use file metadata such as `name` and `path` when referencing specific files.
+                - Use the `nbLines` attribute to provide insights into the file's size or complexity when relevant.
+                - Use the `mime-type` attribute to describe the file's format or content type.
+                - When retrieving code, always reference the file's `path` and `name` to provide context.
+
+                #### Markdown Links for References
+                - Use Markdown links with a title attribute to reference files. For example:
+                `[MyClass.java](src/main/java/com/example/MyClass.java "Java source file")`.
+
+                ### Handling Non-Code Queries
+                - If the query is not related to code, omit the `language` and `code` fields in the response. Focus on providing a clear explanation and actionable suggestions.
+
+                ### Example Response
+                {
+                    "answers": [
+                        {
+                            "explanation": "The file `MyClass.java` contains the implementation of the main application logic. It is located at `src/main/java/com/example/MyClass.java` and contains 120 lines of Java code. The file's MIME type is `text/x-java-source`.",
+                            "language": "Java",
+                            "code": "public class MyClass { ... }",
+                            "codeExplanation": "This code defines the main class of the application.",
+                            "references": ["[MyClass.java](src/main/java/com/example/MyClass.java \"Java source file\")"]
+                        }
+                    ],
+                    "conversationalGuidance": "Would you like to see more details about this file or related files?"
+                }
+                """).setReasoningEffort(ReasoningEffort.high)
+            //.setTemperature(.02) //Not suported in o3-mini
+            .addFileSearchTool().addFileSearchAssist()
+            .setFileSearchMaxNumResults(20) //default
+            //.setFileSearchRankingOption(.5)
+            .setToolResourcesFileSearch(Set.of(vsAllOaiId)) //: can only put one vs so putting vsAll
+            //Function are not needed since we use attributes metadata
+            // .addFunction()
+            //     .setFunctionName("countLines")
+            //     .setFunctionDescription("This function will return the number of lines in a file")
+            //     .FunctionAddParameter("fileid", "string", "The id of the file")
+            //todo: implement get the file name from the file_id
+            // .addFunction()
+            //     .setFunctionName("getFilename")
+            //     .setFunctionDescription("This function will return the name of file")
+            //     .FunctionAddParameter("fileid", "string", "The id of the file");
+            // .addFunction()
+            //     .setFunctionName("isAnswerCode")
+            //     .setFunctionDescription("This function will return the name of file")
+            //     .FunctionAddParameter("fileid", "string", "The id of the file");
+            ;
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        String assistantJson = mapper.writeValueAsString(assistantBuilder);
+        System.out.println(assistantJson);
+        mapper.writeValueAsString(assistantBuilder);
+        String assistantOaiId=assistantService.createAssistant(assistantBuilder);
+        Integer[] vsIds = vectorStorMap.values().toArray(new Integer[0]);
+        Assistant assistant = new Assistant(0, assistantOaiId, name, "Code search assistant for " + name,
+            projectId, vsIds[0], vsIds[1], vsIds[2], vsIds[3]
+        );
+        return assistantRepository.addAssistant(assistant);
+    }
+}
@@ -0,0 +1,45 @@
+package com.unbumpkin.codechat.repository.openai;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * What QuestionRouter changed on openai: the assistants whose vsAll it removed and the store
+ * the file search of each thread points at.
+ */
+@Repository
+public class QuestionRouteRepository {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    public boolean isAssistantRouted(String oaiAid) {
+        List<Boolean> routed = jdbcTemplate.queryForList(
+            "select routed from core.assistant where oai_aid=?", Boolean.class, oaiAid
+        );
+        return !routed.isEmpty() && Boolean.TRUE.equals(routed.get(0));
+    }
+
+    public void setAssistantRouted(String oaiAid, boolean routed) {
+        jdbcTemplate.update("update core.assistant set routed=? where oai_aid=?", routed, oaiAid);
+    }
+
+    /**
+     * @return the vector store openai id the thread file search points at, null when none
+     */
+    public String getThreadStore(String oaiThreadId) {
+        List<String> stores = jdbcTemplate.queryForList(
+            "select routed_oai_vs_id from core.thread where oai_threadid=?", String.class, oaiThreadId
+        );
+        return stores.isEmpty() ? null : stores.get(0);
+    }
+
+    /**
+     * @param vsOaiId null when the thread has no store of its own
+     */
+    public void setThreadStore(String oaiThreadId, String vsOaiId) {
+        jdbcTemplate.update("update core.thread set routed_oai_vs_id=? where oai_threadid=?", vsOaiId, oaiThreadId);
+    }
+}
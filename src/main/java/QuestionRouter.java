@@ -0,0 +1,249 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.unbumpkin.codechat.repository.openai.QuestionRouteRepository;
+import com.unbumpkin.codechat.repository.openai.VectorStoreRepository;
+import com.unbumpkin.codechat.repository.openai.VectorStoreRepository.RepoVectorStoreResponse;
+import com.unbumpkin.codechat.service.SymbolIndex;
+import com.unbumpkin.codechat.service.SymbolIndex.SymbolMatch;
+import com.unbumpkin.codechat.service.SymbolIndexService;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+
+import static com.unbumpkin.codechat.service.openai.CCProjectFileManager.getFileType;
+
+/**
+ * Sends each question to the smallest vector store that can answer it. The question is classified
+ * as code, markup or config from the file names and known symbols it mentions and from its words,
+ * anything unclear goes to vsAll. The file search of the discussion thread is then pointed at that store,
+ * so the conversation stays in one thread. The store of the assistant itself is removed the first time,
+ * file search would search it too: once routed, an assistant relies on the store of its threads.
+ * Enabled with codechat.router.enabled. What was changed on openai is kept in core.assistant and core.thread,
+ * so once routing is turned off the next question gives the assistant its vsAll back and clears the thread store.
+ */
+@Service
+public class QuestionRouter {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // File names, identifiers in backquotes, qualified names and camel or snake case words
+    private static final Pattern FILE_NAME = Pattern.compile("[\\w./-]+\\.[A-Za-z][\\w]{0,9}\\b");
+    private static final Pattern IDENTIFIER = Pattern.compile(
+        "`([^`\\s]+)`|\\b([A-Za-z_$][\\w$]*\\.[A-Za-z_$][\\w$]*)\\b|\\b([a-z]+[A-Z][\\w$]*|[A-Z][a-z]+[A-Z][\\w$]*|[a-z]+_[a-z_]+)\\b"
+    );
+    private static final Map<Types,Set<String>> KEYWORDS = Map.of(
+        Types.code, Set.of(
+            "code", "function", "functions", "method", "methods", "class", "classes", "interface", "implement",
+            "implemented", "implementation", "call", "calls", "called", "bug", "exception", "error", "stack",
+            "variable", "return", "returns", "refactor", "algorithm", "controller", "service", "repository",
+            "endpoint", "query", "loop", "compile", "enum", "record"
+        ),
+        Types.markup, Set.of(
+            "readme", "documentation", "documented", "docs", "doc", "guide", "tutorial", "markdown", "html",
+            "page", "pages", "changelog", "license", "wiki", "describe", "explained"
+        ),
+        Types.config, Set.of(
+            "config", "configuration", "configured", "configure", "setting", "settings", "property", "properties",
+            "yaml", "yml", "env", "environment", "docker", "dockerfile", "pom", "gradle", "dependency",
+            "dependencies", "port", "profile", "profiles", "deploy", "deployment"
+        )
+    );
+    // Words like test, type, api, build or version are left out: they are as common in questions about docs and config
+    // Weight of a file or symbol mentioned by the question over a single keyword
+    private static final int MENTION_WEIGHT = 3;
+    private static final int MIN_SCORE = 2;
+
+    @Autowired
+    private VectorStoreRepository vsRepository;
+    @Autowired
+    private SymbolIndexService symbolIndexService;
+    @Autowired
+    private QuestionRouteRepository routeRepository;
+    @Autowired
+    private OaiHttpClient httpClient;
+
+    @Value("${codechat.router.enabled:false}")
+    private boolean enabled;
+
+    // Vector store openai ids of each project
+    private final Map<Integer,Map<Types,String>> projectStores = new ConcurrentHashMap<>();
+    // Read through caches of core.thread and core.assistant, a thread without store of its own maps to ""
+    private final Map<String,String> threadStores = new ConcurrentHashMap<>();
+    private final Map<String,Boolean> routedAssistants = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Point the thread file search at the store of the question before a run.
+     * @return the type of the store used
+     */
+    public Types prepareThread(int projectId, String assistantOaiId, String threadOaiId, String question) throws IOException {
+        if (!enabled) {
+            restore(projectId, assistantOaiId, threadOaiId);
+            return Types.all;
+        }
+        Types type = classify(projectId, question);
+        Map<Types,String> stores = getStores(projectId);
+        String vsOaiId = stores.getOrDefault(type, stores.get(Types.all));
+        if (vsOaiId == null) {
+            return Types.all;
+        }
+        if (!isRouted(assistantOaiId)) {
+            post("/assistants/"+assistantOaiId, toolResources(null));
+            setRouted(assistantOaiId, true);
+        }
+        if (!vsOaiId.equals(getThreadStore(threadOaiId))) {
+            post("/threads/"+threadOaiId, toolResources(vsOaiId));
+            setThreadStore(threadOaiId, vsOaiId);
+        }
+        System.out.println("Question routed to the "+type+" vector store");
+        return type;
+    }
+
+    /**
+     * Undo the routing of an earlier run: the assistant searches vsAll again and the thread has no store of its own.
+     */
+    private void restore(int projectId, String assistantOaiId, String threadOaiId) throws IOException {
+        if (isRouted(assistantOaiId)) {
+            String vsAllOaiId = getStores(projectId).get(Types.all);
+            if (vsAllOaiId != null) {
+                post("/assistants/"+assistantOaiId, toolResources(vsAllOaiId));
+                setRouted(assistantOaiId, false);
+                System.out.println("Routing off, vsAll restored on assistant "+assistantOaiId);
+            }
+        }
+        if (getThreadStore(threadOaiId) != null) {
+            post("/threads/"+threadOaiId, toolResources(null));
+            setThreadStore(threadOaiId, null);
+        }
+    }
+
+    private boolean isRouted(String assistantOaiId) {
+        return routedAssistants.computeIfAbsent(assistantOaiId, routeRepository::isAssistantRouted);
+    }
+
+    private void setRouted(String assistantOaiId, boolean routed) {
+        routeRepository.setAssistantRouted(assistantOaiId, routed);
+        routedAssistants.put(assistantOaiId, routed);
+    }
+
+    private String getThreadStore(String threadOaiId) {
+        String vsOaiId = threadStores.computeIfAbsent(threadOaiId, id -> {
+            String stored = routeRepository.getThreadStore(id);
+            return stored == null ? "" : stored;
+        });
+        return vsOaiId.isEmpty() ? null : vsOaiId;
+    }
+
+    private void setThreadStore(String threadOaiId, String vsOaiId) {
+        routeRepository.setThreadStore(threadOaiId, vsOaiId);
+        threadStores.put(threadOaiId, vsOaiId == null ? "" : vsOaiId);
+    }
+
+    /**
+     * @return the only type the question is about, all when none or several
+     */
+    public Types classify(int projectId, String question) {
+        Map<Types,Integer> scores = new EnumMap<>(Types.class);
+        Matcher files = FILE_NAME.matcher(question);
+        while (files.find()) {
+            String fileName = files.group();
+            addScore(scores, getFileType(fileName.substring(fileName.lastIndexOf('/')+1)), MENTION_WEIGHT);
+        }
+        if (symbolIndexService.isEnabled()) {
+            Matcher identifiers = IDENTIFIER.matcher(question);
+            while (identifiers.find()) {
+                String identifier = identifiers.group(1) != null ? identifiers.group(1)
+                    : identifiers.group(2) != null ? identifiers.group(2) : identifiers.group(3);
+                List<SymbolMatch> matches = symbolIndexService.search(projectId, identifier, 1);
+                if (!matches.isEmpty() && SymbolIndex.isExactMatch(matches.get(0).symbol(), identifier)) {
+                    String path = matches.get(0).symbol().filePath();
+                    addScore(scores, getFileType(path.substring(path.lastIndexOf('/')+1)), MENTION_WEIGHT);
+                }
+            }
+        }
+        for (String word : question.toLowerCase(Locale.ROOT).split("[^a-z]+")) {
+            for (Map.Entry<Types,Set<String>> keywords : KEYWORDS.entrySet()) {
+                if (keywords.getValue().contains(word)) {
+                    addScore(scores, keywords.getKey(), 1);
+                }
+            }
+        }
+        // One keyword alone is too weak, a question about several kinds of files needs them all
+        if (scores.size() != 1) {
+            return Types.all;
+        }
+        Map.Entry<Types,Integer> score = scores.entrySet().iterator().next();
+        return score.getValue() >= MIN_SCORE ? score.getKey() : Types.all;
+    }
+
+    private static void addScore(Map<Types,Integer> scores, Types type, int score) {
+        if (type != null && type != Types.all) {
+            scores.merge(type, score, Integer::sum);
+        }
+    }
+
+    /**
+     * Forget the vector stores of the project, called when they are created or deleted.
+     */
+    public void invalidateProject(int projectId) {
+        projectStores.remove(projectId);
+    }
+
+    private Map<Types,String> getStores(int projectId) {
+        return projectStores.computeIfAbsent(projectId, id -> {
+            Map<Types,String> stores = new EnumMap<>(Types.class);
+            Map<Types,RepoVectorStoreResponse> vsMap = CCProjectFileManager.getVectorStoretMap(
+                vsRepository.getVectorStoresByProjectId(id)
+            );
+            for (Map.Entry<Types,RepoVectorStoreResponse> entry : vsMap.entrySet()) {
+                stores.put(entry.getKey(), entry.getValue().vsid());
+            }
+            return stores;
+        });
+    }
+
+    /**
+     * @param vsOaiId null to remove the vector store
+     */
+    private static ObjectNode toolResources(String vsOaiId) {
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode vectorStoreIds = body.putObject("tool_resources").putObject("file_search").putArray("vector_store_ids");
+        if (vsOaiId != null) {
+            vectorStoreIds.add(vsOaiId);
+        }
+        return body;
+    }
+
+    private void post(String path, ObjectNode body) throws IOException {
+        HttpRequest request = httpClient.request(path)
+            .timeout(Duration.ofSeconds(30))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+            .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(), Lane.interactive);
+        if (response.statusCode() >= 300) {
+            throw new IOException("Request to "+path+" failed with status "+response.statusCode()+": "+response.body());
+        }
+    }
+}
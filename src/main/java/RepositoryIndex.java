@@ -0,0 +1,188 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+import com.unbumpkin.codechat.util.ExtMimeType;
+import com.unbumpkin.codechat.util.FileScanner;
+import com.unbumpkin.codechat.util.FileScanner.FileScan;
+import com.unbumpkin.codechat.util.FileUtils;
+
+import static com.unbumpkin.codechat.service.openai.CCProjectFileManager.getFileType;
+
+/**
+ * Immutable index of the files of a repository working copy, built with one parallel walk.
+ * Each file is read once to get its line count and content hash, everything the ingestion
+ * needs about a file (type, extension, mime type, size) is computed here and nowhere else.
+ */
+public final class RepositoryIndex {
+    private static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors()*2);
+
+    private final Path root;
+    private final Map<Types,List<IndexedFile>> filesByType;
+    private final Map<String,IndexedFile> filesByPath;
+
+    public record IndexedFile(
+        File file, String relativePath, Types type, String extension, String mimeType,
+        int lineCount, long size, String contentHash
+    ) {
+        public String name() {
+            return file.getName();
+        }
+    }
+
+    private RepositoryIndex(Path root, List<IndexedFile> files) {
+        this.root = root;
+        Map<Types,List<IndexedFile>> byType = new EnumMap<>(Types.class);
+        Map<String,IndexedFile> byPath = new HashMap<>(files.size()*2);
+        for (IndexedFile file : files) {
+            byType.computeIfAbsent(file.type(), k -> new ArrayList<>()).add(file);
+            byPath.put(file.relativePath(), file);
+        }
+        byType.replaceAll((type, list) -> Collections.unmodifiableList(list));
+        this.filesByType = Collections.unmodifiableMap(byType);
+        this.filesByPath = Collections.unmodifiableMap(byPath);
+    }
+
+    /**
+     * Walk the whole working copy, .git excluded.
+     */
+    public static RepositoryIndex build(String rootPath) throws IOException {
+        Path root = Path.of(rootPath).toAbsolutePath().normalize();
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            List<IndexedFile> files = pool.invoke(new DirectoryTask(root, root));
+            System.out.println("Repository "+root+" indexed: "+files.size()+" files");
+            return new RepositoryIndex(root, files);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Index only the given files, used when refreshing a few changed files.
+     * @param relativePaths paths relative to rootPath
+     */
+    public static RepositoryIndex build(String rootPath, Collection<String> relativePaths) throws IOException {
+        Path root = Path.of(rootPath).toAbsolutePath().normalize();
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            List<IndexedFile> files = pool.submit(() -> relativePaths.parallelStream()
+                .map(relativePath -> indexFile(root, root.resolve(relativePath)))
+                .filter(file -> file != null)
+                .toList()
+            ).join();
+            return new RepositoryIndex(root, files);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the files of the type, empty if none
+     */
+    public List<IndexedFile> getFiles(Types type) {
+        return filesByType.getOrDefault(type, List.of());
+    }
+
+    public Collection<IndexedFile> getFiles() {
+        return filesByPath.values();
+    }
+
+    public IndexedFile getFile(String relativePath) {
+        return filesByPath.get(relativePath);
+    }
+
+    public int size() {
+        return filesByPath.size();
+    }
+
+    private static class DirectoryTask extends RecursiveTask<List<IndexedFile>> {
+        private final Path root;
+        private final Path dir;
+
+        DirectoryTask(Path root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<IndexedFile> compute() {
+            List<DirectoryTask> subTasks = new ArrayList<>();
+            List<IndexedFile> files = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!".git".equals(entry.getFileName().toString())) {
+                            subTasks.add(new DirectoryTask(root, entry));
+                        }
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        IndexedFile file = indexFile(root, entry);
+                        if (file != null) {
+                            files.add(file);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (DirectoryTask task : ForkJoinTask.invokeAll(subTasks)) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+    }
+
+    /**
+     * @return true if the file is a code, markup or config file
+     */
+    public static boolean isIndexed(String fileName) {
+        Types type = getFileType(fileName);
+        return type != null && type != Types.all;
+    }
+
+    /**
+     * @return the indexed file, null if it is not a code, markup or config file
+     */
+    private static IndexedFile indexFile(Path root, Path path) {
+        String name = path.getFileName().toString();
+        if (!isIndexed(name)) {
+            return null;
+        }
+        Types type = getFileType(name);
+        String extension = FileUtils.getFileExtension(name);
+        try {
+            FileScan stats = FileScanner.scan(path);
+            return new IndexedFile(
+                path.toFile(), root.relativize(path).toString(), type, extension,
+                ExtMimeType.getMimeType(extension), stats.lineCount(), stats.size(), stats.contentHash()
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
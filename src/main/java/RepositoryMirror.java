@@ -0,0 +1,333 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.unbumpkin.codechat.model.ProjectResource;
+import com.unbumpkin.codechat.model.UserSecret;
+import com.unbumpkin.codechat.model.UserSecret.Labels;
+
+/**
+ * A bare git mirror per project resource, kept between refreshes.
+ * A refresh fetches only the objects added since the last one and writes only the changed files,
+ * no working copy is ever checked out. Any url git understands works, file:// included.
+ */
+@Service
+public class RepositoryMirror {
+    private static final long GIT_TIMEOUT_MINUTES = 30;
+
+    private final Path mirrorRoot;
+    private final Map<Integer,ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Changed files, relative to the repository root.
+     * A file renamed with changes is a deleted file plus an added file, renamedFiles only has exact renames.
+     */
+    public record Changes(
+        List<String> addedFiles, List<String> modifiedFiles, List<String> deletedFiles, List<Rename> renamedFiles
+    ) {
+        public boolean isEmpty() {
+            return addedFiles.isEmpty() && modifiedFiles.isEmpty() && deletedFiles.isEmpty() && renamedFiles.isEmpty();
+        }
+    }
+
+    public record Rename(String oldPath, String newPath) {}
+
+    public RepositoryMirror(
+        @Value("${codechat.mirror.dir:${java.io.tmpdir}/codechat-mirrors}") String mirrorDir
+    ) {
+        this.mirrorRoot = Path.of(mirrorDir);
+    }
+
+    /**
+     * Fetch the resource branch into its mirror, creating the mirror the first time.
+     * @return the commit hash of the branch head
+     */
+    public String fetch(ProjectResource resource) throws IOException {
+        String branch = resource.secrets().get(Labels.branch).value();
+        Path mirror = getMirrorPath(resource.prId());
+        ReentrantLock lock = locks.computeIfAbsent(resource.prId(), k -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (!Files.exists(mirror.resolve("HEAD"))) {
+                Files.createDirectories(mirror);
+                git(mirror, null, "init", "--bare", "--quiet");
+            }
+            // The url and credentials are passed on each fetch, nothing is stored in the mirror config
+            git(mirror, credentials(resource),
+                "fetch", "--quiet", "--no-tags", resource.uri(), "+refs/heads/"+branch+":refs/heads/"+branch
+            );
+            return text(git(mirror, null, "rev-parse", "refs/heads/"+branch));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the files changed between the two commits
+     * @throws IOException if oldCommit is not in the mirror, after a force push for instance
+     */
+    public Changes getChanges(int prId, String oldCommit, String newCommit) throws IOException {
+        Path mirror = getMirrorPath(prId);
+        if (!hasCommit(mirror, oldCommit)) {
+            throw new IOException("Commit "+oldCommit+" not found in mirror of resource "+prId);
+        }
+        byte[] diff = git(mirror, null,
+            "diff", "--name-status", "-z", "--find-renames", "--ignore-submodules", oldCommit, newCommit
+        );
+        List<String> addedFiles = new ArrayList<>();
+        List<String> modifiedFiles = new ArrayList<>();
+        List<String> deletedFiles = new ArrayList<>();
+        List<Rename> renamedFiles = new ArrayList<>();
+        // -z output: status NUL path NUL, renames and copies have a second path: R<score> NUL old NUL new NUL
+        String[] fields = new String(diff, StandardCharsets.UTF_8).split("\0");
+        int i = 0;
+        while (i+1 < fields.length) {
+            String status = fields[i];
+            String path = fields[i+1];
+            switch (status.charAt(0)) {
+                case 'R' -> {
+                    String newPath = fields[i+2];
+                    if (status.equals("R100")) {
+                        renamedFiles.add(new Rename(path, newPath));
+                    } else {
+                        deletedFiles.add(path);
+                        addedFiles.add(newPath);
+                    }
+                    i++;
+                }
+                case 'C' -> {
+                    addedFiles.add(fields[i+2]);
+                    i++;
+                }
+                case 'D' -> deletedFiles.add(path);
+                case 'M', 'T' -> modifiedFiles.add(path);
+                default -> addedFiles.add(path);
+            }
+            i += 2;
+        }
+        return new Changes(addedFiles, modifiedFiles, deletedFiles, renamedFiles);
+    }
+
+    /**
+     * @return the paths of the files at the commit, relative to the repository root
+     * @throws IOException if the commit is not in the mirror
+     */
+    public List<String> listFiles(int prId, String commit) throws IOException {
+        Path mirror = getMirrorPath(prId);
+        if (!hasCommit(mirror, commit)) {
+            throw new IOException("Commit "+commit+" not found in mirror of resource "+prId);
+        }
+        byte[] tree = git(mirror, null, "ls-tree", "-r", "-z", "--full-tree", commit);
+        List<String> files = new ArrayList<>();
+        // -z output: <mode> SP <type> SP <object> TAB <path> NUL, submodules are commit entries
+        for (String entry : new String(tree, StandardCharsets.UTF_8).split("\0")) {
+            int tab = entry.indexOf('\t');
+            if (tab > 0 && entry.substring(0, tab).contains(" blob ")) {
+                files.add(entry.substring(tab+1));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Write the content of the given files at the commit in a new work directory, with a single git process.
+     * @return the work directory, to delete with deleteWorkDir
+     */
+    public Path materialize(int prId, String commit, Collection<String> paths) throws IOException {
+        Path target = Files.createTempDirectory("codechat-"+prId+"-").toAbsolutePath().normalize();
+        if (paths.isEmpty()) {
+            return target;
+        }
+        Process process = start(getMirrorPath(prId), null, "cat-file", "--batch");
+        Thread writer = Thread.ofVirtual().start(() -> {
+            try (OutputStream in = process.getOutputStream()) {
+                for (String path : paths) {
+                    in.write((commit+":"+path+"\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                process.destroy();
+            }
+        });
+        try (InputStream out = new BufferedInputStream(process.getInputStream(), 65536)) {
+            for (String path : paths) {
+                // <sha> blob <size>\n<content>\n or <object> missing\n
+                String header = readLine(out);
+                if (header == null || header.endsWith(" missing")) {
+                    throw new IOException("File "+path+" not found at commit "+commit);
+                }
+                long size = Long.parseLong(header.substring(header.lastIndexOf(' ')+1));
+                Path file = target.resolve(path).normalize();
+                if (!file.startsWith(target)) {
+                    throw new IOException("Invalid path "+path);
+                }
+                Files.createDirectories(file.getParent());
+                try (OutputStream fileOut = Files.newOutputStream(file)) {
+                    copy(out, fileOut, size);
+                }
+                out.read();
+            }
+        } catch (IOException e) {
+            deleteWorkDir(target);
+            throw e;
+        } finally {
+            process.destroy();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return target;
+    }
+
+    public void deleteWorkDir(Path workDir) throws IOException {
+        deleteDirectory(workDir);
+    }
+
+    public void deleteMirror(int prId) throws IOException {
+        deleteDirectory(getMirrorPath(prId));
+        locks.remove(prId);
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private Path getMirrorPath(int prId) {
+        return mirrorRoot.resolve(prId+".git");
+    }
+
+    private boolean hasCommit(Path mirror, String commit) throws IOException {
+        Process process = start(mirror, null, "cat-file", "-e", commit+"^{commit}");
+        return waitFor(process) == 0;
+    }
+
+    private Map<String,String> credentials(ProjectResource resource) {
+        UserSecret username = resource.secrets().get(Labels.username);
+        UserSecret password = resource.secrets().get(Labels.password);
+        if (username == null || username.value() == null || username.value().isEmpty()) {
+            return null;
+        }
+        String basic = Base64.getEncoder().encodeToString(
+            (username.value()+":"+(password == null ? "" : password.value())).getBytes(StandardCharsets.UTF_8)
+        );
+        // Environment config so the token does not show in the process arguments
+        return Map.of(
+            "GIT_CONFIG_COUNT", "1",
+            "GIT_CONFIG_KEY_0", "http.extraHeader",
+            "GIT_CONFIG_VALUE_0", "Authorization: Basic "+basic
+        );
+    }
+
+    private byte[] git(Path dir, Map<String,String> env, String... args) throws IOException {
+        Process process = start(dir, env, args);
+        process.getOutputStream().close();
+        // Both streams are read aside so the timeout of waitFor applies to a stalled git
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Thread outputReader = drain(process.getInputStream(), output);
+        Thread errorReader = drain(process.getErrorStream(), errors);
+        int exitCode = waitFor(process);
+        try {
+            outputReader.join();
+            errorReader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("git interrupted", e);
+        }
+        if (exitCode != 0) {
+            throw new IOException("git "+args[0]+" failed ("+exitCode+"): "+errors.toString(StandardCharsets.UTF_8).trim());
+        }
+        return output.toByteArray();
+    }
+
+    private static Thread drain(InputStream stream, ByteArrayOutputStream target) {
+        return Thread.ofVirtual().start(() -> {
+            try (InputStream in = stream) {
+                in.transferTo(target);
+            } catch (IOException e) {
+                // The exit code reports the failure
+            }
+        });
+    }
+
+    private Process start(Path dir, Map<String,String> env, String... args) throws IOException {
+        List<String> command = new ArrayList<>(args.length+3);
+        command.add("git");
+        command.add("--git-dir");
+        command.add(dir.toString());
+        command.addAll(List.of(args));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().put("GIT_TERMINAL_PROMPT", "0");
+        if (env != null) {
+            builder.environment().putAll(env);
+        }
+        return builder.start();
+    }
+
+    private int waitFor(Process process) throws IOException {
+        try {
+            if (!process.waitFor(GIT_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                throw new IOException("git timed out");
+            }
+            return process.exitValue();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("git interrupted", e);
+        }
+    }
+
+    private static String text(byte[] output) {
+        return new String(output, StandardCharsets.UTF_8).trim();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void copy(InputStream in, OutputStream out, long size) throws IOException {
+        byte[] buffer = new byte[8192];
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of git output");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+}
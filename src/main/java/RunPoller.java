@@ -0,0 +1,154 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Waits for assistant runs without a thread per run. A single scheduler thread keeps the pending runs
+ * ordered by their next check, sends the checks that are due together as asynchronous requests,
+ * and spaces the checks of a run more and more while it stays queued or in progress.
+ * Non blocking counterpart of OaiRunService.waitForAnswer().
+ */
+@Service
+public class RunPoller {
+    // Statuses after which the run does not change anymore
+    private static final Set<String> FINAL_STATUSES = Set.of(
+        "completed", "failed", "cancelled", "expired", "incomplete", "requires_action"
+    );
+    private static final long TICK_MS = 100;
+    private static final long MIN_INTERVAL_MS = 250;
+    private static final long MAX_INTERVAL_MS = 5_000;
+    private static final double BACKOFF = 1.5;
+    // Failed checks in a row before the run is given up
+    private static final int MAX_ERRORS = 3;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final OaiHttpClient httpClient;
+    private final int maxConcurrentChecks;
+    private final Duration timeout;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "run-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Only used from the scheduler thread
+    private final PriorityQueue<PendingRun> pending = new PriorityQueue<>(Comparator.comparingLong(run -> run.nextCheck));
+    private int checksInFlight;
+
+    private static class PendingRun {
+        final String threadOaiId;
+        final String runOaiId;
+        final CompletableFuture<JsonNode> result = new CompletableFuture<>();
+        final long deadline;
+        long interval = MIN_INTERVAL_MS;
+        long nextCheck;
+        int errors;
+
+        PendingRun(String threadOaiId, String runOaiId, long deadline) {
+            this.threadOaiId = threadOaiId;
+            this.runOaiId = runOaiId;
+            this.deadline = deadline;
+            this.nextCheck = System.currentTimeMillis()+MIN_INTERVAL_MS;
+        }
+    }
+
+    public RunPoller(
+        OaiHttpClient httpClient,
+        @Value("${codechat.run-poller.max-concurrent-checks:64}") int maxConcurrentChecks,
+        @Value("${codechat.run-poller.timeout:10m}") Duration timeout
+    ) {
+        this.httpClient = httpClient;
+        this.maxConcurrentChecks = maxConcurrentChecks;
+        this.timeout = timeout;
+        scheduler.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return completed with the run once its status is final, cancel it to stop polling
+     */
+    public CompletableFuture<JsonNode> await(String threadOaiId, String runOaiId) {
+        PendingRun run = new PendingRun(threadOaiId, runOaiId, System.currentTimeMillis()+timeout.toMillis());
+        scheduler.execute(() -> pending.add(run));
+        return run.result;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        while (!pending.isEmpty() && pending.peek().nextCheck <= now && checksInFlight < maxConcurrentChecks) {
+            PendingRun run = pending.poll();
+            if (run.result.isDone()) {
+                continue;
+            }
+            if (now > run.deadline) {
+                run.result.completeExceptionally(new IOException("Run "+run.runOaiId+" not finished after "+timeout));
+                continue;
+            }
+            try {
+                httpClient.sendAsync(statusRequest(run), HttpResponse.BodyHandlers.ofString(), Lane.interactive)
+                    .whenComplete((response, error) -> scheduler.execute(() -> onChecked(run, response, error)));
+                checksInFlight++;
+            } catch (RuntimeException e) {
+                // An exception escaping the tick would stop the scheduling of all the runs
+                run.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void onChecked(PendingRun run, HttpResponse<String> response, Throwable error) {
+        checksInFlight--;
+        try {
+            if (error != null) {
+                throw new IOException("Run status request failed: "+error.getMessage(), error);
+            }
+            if (response.statusCode() >= 300) {
+                throw new IOException("Run status request failed with status "+response.statusCode()+": "+response.body());
+            }
+            JsonNode node = objectMapper.readTree(response.body());
+            run.errors = 0;
+            if (FINAL_STATUSES.contains(node.path("status").asText())) {
+                run.result.complete(node);
+                return;
+            }
+        } catch (IOException e) {
+            if (++run.errors >= MAX_ERRORS) {
+                run.result.completeExceptionally(e);
+                return;
+            }
+            System.out.println("Retrying status of run "+run.runOaiId+": "+e.getMessage());
+        }
+        run.interval = Math.min((long) (run.interval*BACKOFF), MAX_INTERVAL_MS);
+        run.nextCheck = System.currentTimeMillis()+run.interval;
+        pending.add(run);
+    }
+
+    private HttpRequest statusRequest(PendingRun run) {
+        return httpClient.request("/threads/"+run.threadOaiId+"/runs/"+run.runOaiId)
+            .timeout(Duration.ofSeconds(30))
+            .GET()
+            .build();
+    }
+}
@@ -0,0 +1,473 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a file in chunks while reading it line by line, only the current chunk is kept in memory.
+ * Code is split at class and function boundaries, markup at headings and config at top level sections,
+ * anything else in windows of MAX_LINES. The comments and annotations above a declaration stay with it,
+ * declarations shorter than MIN_LINES are merged with the next one.
+ */
+public final class SourceChunker {
+    public static final int MAX_LINES = 120;
+    public static final int MIN_LINES = 4;
+    private static final int MAX_SIGNATURE_LENGTH = 256;
+    // Headings and keys can be a whole line, core.symbol.name and parent are varchar(512)
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private static final Set<String> BRACE_LANGUAGES = Set.of(
+        "java", "kt", "kts", "scala", "groovy", "gradle", "js", "jsx", "mjs", "cjs", "ts", "tsx", "dart",
+        "c", "h", "cc", "cpp", "hpp", "cs", "go", "rs", "swift", "php", "m", "mm"
+    );
+    private static final Set<String> CONTROL_WORDS = Set.of(
+        "if", "for", "while", "switch", "catch", "return", "new", "else", "do", "try", "synchronized",
+        "throw", "case", "when", "foreach", "await", "yield", "assert", "super", "this", "sizeof", "typeof"
+    );
+    private static final Pattern TYPE_DECLARATION = Pattern.compile(
+        "\\b(class|interface|enum|record|struct|trait|object|mixin|extension|protocol|impl)\\s+([A-Za-z_$][\\w$]*)"
+    );
+    private static final Pattern FUNCTION_DECLARATION = Pattern.compile(
+        "^\\s*(?:[\\w$<>\\[\\],.?@*&:]+\\s+)*([A-Za-z_$][\\w$]*)\\s*(?:<[^>()]*>)?\\s*\\([^;]*$"
+    );
+    private static final Pattern SCRIPT_FUNCTION = Pattern.compile(
+        "^\\s*(?:export\\s+)?(?:default\\s+)?(?:const|let|var)\\s+([A-Za-z_$][\\w$]*)\\s*=\\s*(?:async\\s+)?(?:function\\b|\\([^)]*\\)\\s*=>|[A-Za-z_$][\\w$]*\\s*=>)"
+    );
+    private static final Pattern GO_METHOD = Pattern.compile("^func\\s+\\([^)]*\\)\\s*([A-Za-z_]\\w*)");
+    private static final Pattern PYTHON_DECLARATION = Pattern.compile("^(\\s*)(?:async\\s+)?(def|class)\\s+([A-Za-z_]\\w*)");
+    private static final Pattern MARKDOWN_HEADING = Pattern.compile("^(#{1,3})\\s+(.+?)\\s*#*\\s*$");
+    private static final Pattern HTML_HEADING = Pattern.compile("^\\s*<h([1-3])[^>]*>\\s*([^<]*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern INI_SECTION = Pattern.compile("^\\s*\\[\\[?([^\\]]+)\\]\\]?\\s*$");
+    private static final Pattern YAML_KEY = Pattern.compile("^([A-Za-z_][\\w.-]*)\\s*:");
+    private static final Pattern JSON_KEY = Pattern.compile("^\\s*\"([^\"]+)\"\\s*:");
+    private static final Pattern PROPERTY_KEY = Pattern.compile("^([A-Za-z_][\\w-]*)[\\w.-]*\\s*[=:]");
+
+    /**
+     * @param startLine first line, 1 based
+     * @param kind class, function, method, section, key or window
+     * @param symbol the first declaration of the chunk, null for a window
+     * @param parent the enclosing class or section, can be null
+     * @param symbols every declaration merged in the chunk
+     */
+    public record SourceChunk(
+        int startLine, int endLine, String content, String kind, String symbol, String parent, List<String> symbols
+    ) {}
+
+    @FunctionalInterface
+    public interface ChunkHandler {
+        void onChunk(SourceChunk chunk) throws IOException;
+    }
+
+    /**
+     * @param line line of the declaration, 1 based
+     * @param signature the declaration line, trimmed
+     */
+    public record SourceSymbol(String name, String kind, String parent, int line, String signature) {}
+
+    @FunctionalInterface
+    public interface SymbolHandler {
+        void onSymbol(SourceSymbol symbol) throws IOException;
+    }
+
+    private record Declaration(String kind, String symbol, String parent) {
+        Declaration {
+            symbol = truncate(symbol, MAX_NAME_LENGTH);
+            parent = truncate(parent, MAX_NAME_LENGTH);
+        }
+    }
+
+    private static String truncate(String text, int maxLength) {
+        return text == null || text.length() <= maxLength ? text : text.substring(0, maxLength);
+    }
+
+    private SourceChunker() {}
+
+    public static void chunk(Path file, String extension, ChunkHandler handler) throws IOException {
+        String language = extension == null ? "" : extension.toLowerCase(Locale.ROOT);
+        Splitter splitter = new Splitter(handler, trailerFor(language));
+        LineClassifier classifier = classifierFor(language);
+        // Malformed UTF-8 is replaced, not reported
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)
+        )) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                splitter.add(line, classifier.classify(line));
+            }
+        }
+        splitter.finish();
+    }
+
+    /**
+     * Report the declarations found by chunk without building the chunks.
+     */
+    public static void symbols(Path file, String extension, SymbolHandler handler) throws IOException {
+        String language = extension == null ? "" : extension.toLowerCase(Locale.ROOT);
+        LineClassifier classifier = classifierFor(language);
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)
+        )) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                Declaration found = classifier.classify(line);
+                if (found != null) {
+                    String signature = truncate(line.trim(), MAX_SIGNATURE_LENGTH);
+                    handler.onSymbol(new SourceSymbol(found.symbol(), found.kind(), found.parent(), lineNumber, signature));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return what can precede a declaration and belongs to it: comments, annotations, blank lines
+     */
+    private static Predicate<String> trailerFor(String language) {
+        if (BRACE_LANGUAGES.contains(language)) {
+            return trimmed -> trimmed.isEmpty() || trimmed.startsWith("//") || trimmed.startsWith("/*")
+                || trimmed.startsWith("*") || trimmed.startsWith("@") || trimmed.startsWith("#[");
+        }
+        return switch (language) {
+            case "py", "pyi" -> trimmed -> trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith("@");
+            case "yaml", "yml", "toml", "ini", "cfg", "conf", "editorconfig", "properties" ->
+                trimmed -> trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith(";");
+            default -> String::isEmpty;
+        };
+    }
+
+    @FunctionalInterface
+    private interface LineClassifier {
+        /**
+         * @return the declaration starting at this line, or null
+         */
+        Declaration classify(String line);
+    }
+
+    private static LineClassifier classifierFor(String language) {
+        if (BRACE_LANGUAGES.contains(language)) {
+            return new BraceClassifier(language);
+        }
+        return switch (language) {
+            case "py", "pyi" -> new PythonClassifier();
+            case "md", "markdown" -> new MarkdownClassifier();
+            case "html", "htm" -> line -> {
+                Matcher m = HTML_HEADING.matcher(line);
+                return m.find() ? new Declaration("section", m.group(2).trim(), null) : null;
+            };
+            case "yaml", "yml" -> line -> {
+                Matcher m = YAML_KEY.matcher(line);
+                return m.find() ? new Declaration("key", m.group(1), null) : null;
+            };
+            case "toml", "ini", "cfg", "conf", "editorconfig" -> line -> {
+                Matcher m = INI_SECTION.matcher(line);
+                return m.find() ? new Declaration("section", m.group(1).trim(), null) : null;
+            };
+            case "json" -> new JsonClassifier();
+            case "properties" -> new PropertiesClassifier();
+            default -> line -> null;
+        };
+    }
+
+    /**
+     * Accumulates lines and emits a chunk at each declaration, moving the comments above it to the new chunk.
+     */
+    private static class Splitter {
+        private final ChunkHandler handler;
+        private final Predicate<String> trailer;
+        private final List<String> lines = new ArrayList<>();
+        private final List<String> symbols = new ArrayList<>();
+        private int startLine = 1;
+        private int lineNumber = 0;
+        // Index in lines of the comments, annotations and blank lines ending the chunk
+        private int trailerStart = 0;
+        private int codeLines = 0;
+        private Declaration declaration;
+
+        Splitter(ChunkHandler handler, Predicate<String> trailer) {
+            this.handler = handler;
+            this.trailer = trailer;
+        }
+
+        void add(String line, Declaration found) throws IOException {
+            lineNumber++;
+            if (found != null) {
+                if (codeLines >= MIN_LINES) {
+                    List<String> moved = new ArrayList<>(lines.subList(trailerStart, lines.size()));
+                    lines.subList(trailerStart, lines.size()).clear();
+                    emit(false);
+                    startLine = lineNumber-moved.size();
+                    lines.addAll(moved);
+                    declaration = found;
+                } else if (declaration == null) {
+                    declaration = found;
+                }
+                symbols.add(found.symbol());
+            }
+            lines.add(line);
+            if (!trailer.test(line.trim())) {
+                trailerStart = lines.size();
+                codeLines++;
+            }
+            if (lines.size() >= MAX_LINES) {
+                // Too long, the rest of the declaration goes on in a new chunk
+                emit(true);
+                startLine = lineNumber+1;
+            }
+        }
+
+        void finish() throws IOException {
+            if (!lines.isEmpty()) {
+                emit(false);
+            }
+        }
+
+        private void emit(boolean split) throws IOException {
+            String content = String.join("\n", lines);
+            if (!content.isBlank()) {
+                SourceChunk chunk = declaration == null
+                    ? new SourceChunk(startLine, startLine+lines.size()-1, content, "window", null, null, List.of())
+                    : new SourceChunk(
+                        startLine, startLine+lines.size()-1, content,
+                        declaration.kind(), declaration.symbol(), declaration.parent(), List.copyOf(symbols)
+                    );
+                handler.onChunk(chunk);
+            }
+            lines.clear();
+            symbols.clear();
+            trailerStart = 0;
+            codeLines = 0;
+            if (!split) {
+                declaration = null;
+            } else if (declaration != null) {
+                symbols.add(declaration.symbol());
+            }
+        }
+    }
+
+    /**
+     * Declarations of C like languages, found at brace depth 0 or 1 outside strings and comments.
+     */
+    private static class BraceClassifier implements LineClassifier {
+        private final boolean script;
+        private final boolean go;
+        private int depth = 0;
+        private boolean inBlockComment = false;
+        private boolean inTextBlock = false;
+        private String currentType;
+        private int typeDepth = -1;
+
+        BraceClassifier(String language) {
+            this.script = Set.of("js", "jsx", "mjs", "cjs", "ts", "tsx").contains(language);
+            this.go = language.equals("go");
+        }
+
+        @Override
+        public Declaration classify(String line) {
+            int lineDepth = depth;
+            boolean inComment = inBlockComment || inTextBlock;
+            scan(line);
+            if (inComment || lineDepth > 1) {
+                return null;
+            }
+            Matcher type = TYPE_DECLARATION.matcher(line);
+            if (type.find() && !line.trim().startsWith("//") && !line.trim().startsWith("*")) {
+                if (currentType == null || lineDepth <= typeDepth) {
+                    currentType = type.group(2);
+                    typeDepth = lineDepth;
+                    return new Declaration("class", type.group(2), null);
+                }
+                return new Declaration("class", type.group(2), currentType);
+            }
+            if (go) {
+                Matcher method = GO_METHOD.matcher(line);
+                if (method.find()) {
+                    return new Declaration("method", method.group(1), null);
+                }
+            }
+            if (script) {
+                Matcher function = SCRIPT_FUNCTION.matcher(line);
+                if (function.find()) {
+                    return function(function.group(1), lineDepth);
+                }
+            }
+            Matcher function = FUNCTION_DECLARATION.matcher(line);
+            if (function.find()) {
+                String first = line.trim().split("[\\s(]", 2)[0];
+                String name = function.group(1);
+                if (!CONTROL_WORDS.contains(first) && !CONTROL_WORDS.contains(name)) {
+                    return function(name, lineDepth);
+                }
+            }
+            return null;
+        }
+
+        private Declaration function(String name, int lineDepth) {
+            if (currentType != null && lineDepth <= typeDepth) {
+                currentType = null;
+                typeDepth = -1;
+            }
+            boolean member = currentType != null && lineDepth == typeDepth+1;
+            return new Declaration(member ? "method" : "function", name, member ? currentType : null);
+        }
+
+        /**
+         * Update the depth with the braces of the line that are not in strings or comments.
+         */
+        private void scan(String line) {
+            char quote = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                char next = i+1 < line.length() ? line.charAt(i+1) : 0;
+                if (inBlockComment) {
+                    if (c == '*' && next == '/') {
+                        inBlockComment = false;
+                        i++;
+                    }
+                } else if (inTextBlock) {
+                    if (line.startsWith("\"\"\"", i)) {
+                        inTextBlock = false;
+                        i += 2;
+                    }
+                } else if (quote != 0) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '/' && next == '/') {
+                    return;
+                } else if (c == '/' && next == '*') {
+                    inBlockComment = true;
+                    i++;
+                } else if (line.startsWith("\"\"\"", i)) {
+                    inTextBlock = true;
+                    i += 2;
+                } else if (c == '"' || c == '\'' || c == '`') {
+                    quote = c;
+                } else if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth = Math.max(0, depth-1);
+                }
+            }
+        }
+    }
+
+    private static class PythonClassifier implements LineClassifier {
+        private String currentType;
+        private int memberIndent = -1;
+
+        @Override
+        public Declaration classify(String line) {
+            Matcher m = PYTHON_DECLARATION.matcher(line);
+            if (!m.find()) {
+                if (!line.isBlank() && !Character.isWhitespace(line.charAt(0)) && !line.startsWith("#")) {
+                    currentType = null;
+                    memberIndent = -1;
+                }
+                return null;
+            }
+            int indent = m.group(1).length();
+            boolean isClass = m.group(2).equals("class");
+            if (indent == 0) {
+                currentType = isClass ? m.group(3) : null;
+                memberIndent = -1;
+                return new Declaration(isClass ? "class" : "function", m.group(3), null);
+            }
+            if (currentType != null && (memberIndent < 0 || indent == memberIndent)) {
+                memberIndent = indent;
+                return new Declaration(isClass ? "class" : "method", m.group(3), currentType);
+            }
+            return null;
+        }
+    }
+
+    private static class MarkdownClassifier implements LineClassifier {
+        private boolean inFence = false;
+        private String currentTitle;
+
+        @Override
+        public Declaration classify(String line) {
+            if (line.trim().startsWith("```") || line.trim().startsWith("~~~")) {
+                inFence = !inFence;
+                return null;
+            }
+            if (inFence) {
+                return null;
+            }
+            Matcher m = MARKDOWN_HEADING.matcher(line);
+            if (!m.find()) {
+                return null;
+            }
+            String title = m.group(2);
+            if (m.group(1).length() == 1) {
+                currentTitle = title;
+                return new Declaration("section", title, null);
+            }
+            return new Declaration("section", title, currentTitle);
+        }
+    }
+
+    /**
+     * Keys of the root object.
+     */
+    private static class JsonClassifier implements LineClassifier {
+        private int depth = 0;
+
+        @Override
+        public Declaration classify(String line) {
+            int lineDepth = depth;
+            boolean inString = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (inString) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth = Math.max(0, depth-1);
+                }
+            }
+            if (lineDepth != 1) {
+                return null;
+            }
+            Matcher m = JSON_KEY.matcher(line);
+            return m.find() ? new Declaration("key", m.group(1), null) : null;
+        }
+    }
+
+    /**
+     * A new section each time the first segment of the keys changes.
+     */
+    private static class PropertiesClassifier implements LineClassifier {
+        private String currentPrefix;
+
+        @Override
+        public Declaration classify(String line) {
+            Matcher m = PROPERTY_KEY.matcher(line);
+            if (!m.find() || m.group(1).equals(currentPrefix)) {
+                return null;
+            }
+            currentPrefix = m.group(1);
+            return new Declaration("section", currentPrefix, null);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.unbumpkin.codechat.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.unbumpkin.codechat.repository.SymbolRepository.Symbol;
+
+/**
+ * In memory lexical index of the symbols and files of a project. Names are scored with BM25 over
+ * their trigrams so partial, differently cased or slightly misspelled identifiers still match,
+ * exact names and qualifiers are boosted on top. Immutable, rebuilt when the project changes.
+ */
+public class SymbolIndex {
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    // Added to the BM25 score, larger than what trigrams alone can give a name
+    private static final float EXACT_BOOST = 20f;
+    private static final float PARENT_BOOST = 10f;
+
+    private final List<Symbol> symbols;
+    // Trigram to the sorted ids of the symbols containing it, an id is repeated once per occurrence
+    private final Map<Long,int[]> postings;
+    private final int[] lengths;
+    private final float averageLength;
+
+    public record SymbolMatch(Symbol symbol, float score) {}
+
+    public SymbolIndex(List<Symbol> symbols) {
+        this.symbols = List.copyOf(symbols);
+        this.lengths = new int[this.symbols.size()];
+        Map<Long,List<Integer>> building = new HashMap<>();
+        long total = 0;
+        for (int id = 0; id < this.symbols.size(); id++) {
+            List<Long> trigrams = trigrams(indexedText(this.symbols.get(id)));
+            lengths[id] = trigrams.size();
+            total += trigrams.size();
+            for (long trigram : trigrams) {
+                building.computeIfAbsent(trigram, t -> new ArrayList<>()).add(id);
+            }
+        }
+        this.postings = new HashMap<>(building.size()*2);
+        for (Map.Entry<Long,List<Integer>> entry : building.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        this.averageLength = lengths.length == 0 ? 1 : Math.max(1, (float) total/lengths.length);
+    }
+
+    public int size() {
+        return symbols.size();
+    }
+
+    /**
+     * @param query an identifier, a qualified name such as Type.member or a file name or path
+     * @return the best matches, best first
+     */
+    public List<SymbolMatch> search(String query, int limit) {
+        String target = query.trim();
+        if (target.isEmpty() || symbols.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        float[] scores = new float[symbols.size()];
+        Set<Long> queryTrigrams = new HashSet<>(trigrams(target));
+        for (long trigram : queryTrigrams) {
+            int[] posting = postings.get(trigram);
+            if (posting == null) {
+                continue;
+            }
+            float idf = (float) Math.log(1+(symbols.size()-posting.length+0.5)/(posting.length+0.5));
+            for (int i = 0; i < posting.length;) {
+                int id = posting[i];
+                int tf = 0;
+                while (i < posting.length && posting[i] == id) {
+                    tf++;
+                    i++;
+                }
+                scores[id] += idf*tf*(K1+1)/(tf+K1*(1-B+B*lengths[id]/averageLength));
+            }
+        }
+        boostExact(target, scores);
+
+        Integer[] candidates = new Integer[symbols.size()];
+        int count = 0;
+        for (int id = 0; id < scores.length; id++) {
+            if (scores[id] > 0) {
+                candidates[count++] = id;
+            }
+        }
+        Arrays.sort(candidates, 0, count, (a, b) -> Float.compare(scores[b], scores[a]));
+        List<SymbolMatch> matches = new ArrayList<>(Math.min(limit, count));
+        for (int i = 0; i < count && matches.size() < limit; i++) {
+            matches.add(new SymbolMatch(symbols.get(candidates[i]), scores[candidates[i]]));
+        }
+        return matches;
+    }
+
+    /**
+     * @return true if the symbol is what the query names, not only similar to it
+     */
+    public static boolean isExactMatch(Symbol symbol, String query) {
+        String target = query.trim();
+        if ("file".equals(symbol.kind())) {
+            return symbol.filePath().equals(target) || symbol.filePath().endsWith("/"+target);
+        }
+        int dot = target.lastIndexOf('.');
+        if (dot < 0) {
+            return symbol.name().equals(target);
+        }
+        return symbol.name().equals(target.substring(dot+1))
+            && symbol.parent() != null && target.substring(0, dot).endsWith(symbol.parent());
+    }
+
+    private void boostExact(String target, float[] scores) {
+        int dot = target.lastIndexOf('.');
+        String name = dot < 0 ? target : target.substring(dot+1);
+        String qualifier = dot < 0 ? null : target.substring(0, dot);
+        for (int id = 0; id < scores.length; id++) {
+            if (scores[id] == 0) {
+                continue;
+            }
+            Symbol symbol = symbols.get(id);
+            if ("file".equals(symbol.kind())) {
+                if (isExactMatch(symbol, target)) {
+                    scores[id] += EXACT_BOOST;
+                }
+                continue;
+            }
+            if (symbol.name().equals(name)) {
+                scores[id] += EXACT_BOOST;
+            } else if (symbol.name().equalsIgnoreCase(name)) {
+                scores[id] += EXACT_BOOST/2;
+            }
+            if (qualifier != null && symbol.parent() != null && qualifier.endsWith(symbol.parent())) {
+                scores[id] += PARENT_BOOST;
+            }
+        }
+    }
+
+    private static String indexedText(Symbol symbol) {
+        return "file".equals(symbol.kind()) ? symbol.filePath() : symbol.name();
+    }
+
+    /**
+     * Trigrams of each word of the text, lower cased and padded so the first and last letters weigh more.
+     */
+    private static List<Long> trigrams(String text) {
+        List<Long> trigrams = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}_$]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            String padded = " "+word+" ";
+            for (int i = 0; i+3 <= padded.length(); i++) {
+                trigrams.add(((long) padded.charAt(i) << 32) | ((long) padded.charAt(i+1) << 16) | padded.charAt(i+2));
+            }
+        }
+        return trigrams;
+    }
+}
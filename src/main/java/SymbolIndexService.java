@@ -0,0 +1,162 @@
+package com.unbumpkin.codechat.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.unbumpkin.codechat.repository.SymbolRepository;
+import com.unbumpkin.codechat.repository.SymbolRepository.Symbol;
+import com.unbumpkin.codechat.service.RepositoryIndex.IndexedFile;
+import com.unbumpkin.codechat.service.SymbolIndex.SymbolMatch;
+
+/**
+ * Where is X defined, answered from core.symbol without a run. The index of a project is
+ * loaded the first time it is searched and dropped whenever its files change.
+ */
+@Service
+public class SymbolIndexService {
+    private static final int BATCH_SIZE = 1000;
+    // Definitions listed in a direct answer
+    private static final int MAX_ANSWERS = 5;
+    // "where is X defined?", "find class X", or only the name
+    private static final Pattern NAVIGATION_QUERY = Pattern.compile(
+        "^\\s*(?:(?:where\\s+is|where's|in\\s+which\\s+file\\s+is|find|locate|show\\s+me)\\s+(?:the\\s+)?"
+        + "(?:class|interface|record|enum|method|function|file|type)?\\s*)?"
+        + "`?([A-Za-z_$][\\w$-]*(?:[./][A-Za-z_$][\\w$-]*)*)`?"
+        + "(?:\\s+(?:defined|declared|implemented|located))?\\s*\\??\\s*$",
+        Pattern.CASE_INSENSITIVE
+    );
+
+    @Autowired
+    private SymbolRepository symbolRepository;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${codechat.symbols.enabled:true}")
+    private boolean enabled;
+    // Answer navigation questions from the index instead of running the assistant
+    @Value("${codechat.symbols.short-circuit:false}")
+    private boolean shortCircuit;
+
+    private final Map<Integer,SymbolIndex> indexes = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isShortCircuitEnabled() {
+        return enabled && shortCircuit;
+    }
+
+    public List<SymbolMatch> search(int projectId, String query, int limit) {
+        return getIndex(projectId).search(query, limit);
+    }
+
+    /**
+     * Replace the symbols of the files with the declarations found in them.
+     */
+    public void indexFiles(int projectId, int prId, Collection<IndexedFile> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        List<String> paths = new ArrayList<>(files.size());
+        for (IndexedFile file : files) {
+            paths.add(file.relativePath());
+        }
+        symbolRepository.deleteSymbolsByPaths(prId, paths);
+        List<Symbol> batch = new ArrayList<>(BATCH_SIZE);
+        for (IndexedFile file : files) {
+            batch.add(new Symbol(projectId, prId, file.relativePath(), file.name(), "file", null, 1, null));
+            SourceChunker.symbols(file.file().toPath(), file.extension(), symbol -> {
+                batch.add(new Symbol(
+                    projectId, prId, file.relativePath(), symbol.name(), symbol.kind(), symbol.parent(),
+                    symbol.line(), symbol.signature()
+                ));
+                if (batch.size() == BATCH_SIZE) {
+                    symbolRepository.addSymbols(batch);
+                    batch.clear();
+                }
+            });
+        }
+        symbolRepository.addSymbols(batch);
+        evict(projectId);
+    }
+
+    public void removeFiles(int projectId, int prId, Collection<String> paths) {
+        if (symbolRepository.deleteSymbolsByPaths(prId, paths) > 0) {
+            evict(projectId);
+        }
+    }
+
+    public void removeProject(int projectId) {
+        symbolRepository.deleteSymbolsByProjectId(projectId);
+        evict(projectId);
+    }
+
+    public void evict(int projectId) {
+        indexes.remove(projectId);
+    }
+
+    /**
+     * @return the answer in the assistant json format when the question only asks where something is
+     * and the index knows it, null otherwise
+     */
+    public String answerNavigation(int projectId, String question) throws JsonProcessingException {
+        Matcher m = NAVIGATION_QUERY.matcher(question);
+        if (!m.matches()) {
+            return null;
+        }
+        String target = m.group(1);
+        List<Symbol> found = new ArrayList<>();
+        for (SymbolMatch match : search(projectId, target, MAX_ANSWERS*4)) {
+            if (SymbolIndex.isExactMatch(match.symbol(), target) && found.size() < MAX_ANSWERS) {
+                found.add(match.symbol());
+            }
+        }
+        if (found.isEmpty()) {
+            return null;
+        }
+        ObjectNode answer = objectMapper.createObjectNode();
+        ArrayNode answers = answer.putArray("answers");
+        for (Symbol symbol : found) {
+            String fileName = symbol.filePath().substring(symbol.filePath().lastIndexOf('/')+1);
+            String link = "["+fileName+"]("+symbol.filePath()+" \""+symbol.filePath()+"\")";
+            ObjectNode item = answers.addObject();
+            if ("file".equals(symbol.kind())) {
+                item.put("explanation", "`"+target+"` is the file "+link+".");
+            } else {
+                String owner = symbol.parent() == null ? "" : " of `"+symbol.parent()+"`";
+                item.put("explanation", "The "+symbol.kind()+" `"+symbol.name()+"`"+owner
+                    +" is defined in "+link+" at line "+symbol.line()+".");
+                item.put("language", fileName.contains(".") ? fileName.substring(fileName.lastIndexOf('.')+1) : "");
+                item.put("code", symbol.signature());
+            }
+            item.putArray("references").add(link);
+        }
+        answer.put("conversationalGuidance", "Ask what `"+target+"` does or where it is used to get a detailed explanation.");
+        return objectMapper.writeValueAsString(answer);
+    }
+
+    private SymbolIndex getIndex(int projectId) {
+        return indexes.computeIfAbsent(projectId, id -> {
+            List<Symbol> symbols = new ArrayList<>();
+            symbolRepository.forEachSymbol(id, symbols::add);
+            SymbolIndex index = new SymbolIndex(symbols);
+            System.out.println("Symbol index of project "+id+" loaded: "+index.size()+" symbols");
+            return index;
+        });
+    }
+}
@@ -0,0 +1,92 @@
+package com.unbumpkin.codechat.repository;
+
+import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Rows of core.symbol, the declarations and files indexed by the symbol index.
+ */
+@Repository
+public class SymbolRepository {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * @param kind file for the file itself, else the declaration kind
+     * @param line 1 based, 1 for a file
+     * @param signature the declaration line, null for a file
+     */
+    public record Symbol(
+        int projectId, int prId, String filePath, String name, String kind, String parent, int line, String signature
+    ) {}
+
+    @FunctionalInterface
+    public interface SymbolHandler {
+        void handle(Symbol symbol);
+    }
+
+    public void forEachSymbol(int projectId, SymbolHandler handler) {
+        jdbcTemplate.query(
+            "select projectid, prid, filepath, name, kind, parent, line, signature from core.symbol where projectid=?",
+            rs -> {
+                handler.handle(new Symbol(
+                    rs.getInt("projectid"),
+                    rs.getInt("prid"),
+                    rs.getString("filepath"),
+                    rs.getString("name"),
+                    rs.getString("kind"),
+                    rs.getString("parent"),
+                    rs.getInt("line"),
+                    rs.getString("signature")
+                ));
+            },
+            projectId
+        );
+    }
+
+    public void addSymbols(List<Symbol> symbols) {
+        if (symbols.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("""
+            insert into core.symbol (projectid, prid, filepath, name, kind, parent, line, signature)
+            values (?, ?, ?, ?, ?, ?, ?, ?)
+            """, symbols, 1000, (ps, symbol) -> {
+                ps.setInt(1, symbol.projectId());
+                ps.setInt(2, symbol.prId());
+                ps.setString(3, symbol.filePath());
+                ps.setString(4, symbol.name());
+                ps.setString(5, symbol.kind());
+                ps.setString(6, symbol.parent());
+                ps.setInt(7, symbol.line());
+                ps.setString(8, symbol.signature());
+            }
+        );
+    }
+
+    /**
+     * @return the number of deleted symbols
+     */
+    public int deleteSymbolsByPaths(int prId, Collection<String> filePaths) {
+        if (filePaths.isEmpty()) {
+            return 0;
+        }
+        return jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(
+                "delete from core.symbol where prid=? and filepath = any(?)"
+            );
+            ps.setInt(1, prId);
+            ps.setArray(2, connection.createArrayOf("varchar", filePaths.toArray()));
+            return ps;
+        });
+    }
+
+    public int deleteSymbolsByProjectId(int projectId) {
+        return jdbcTemplate.update("delete from core.symbol where projectid=?", projectId);
+    }
+}
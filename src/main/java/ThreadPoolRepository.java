@@ -0,0 +1,88 @@
+package com.unbumpkin.codechat.repository.openai;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Threads of core.thread created ahead for the discussions of an assistant, they have no did
+ * until a discussion claims them. The pool of an assistant is keyed by its code vector store.
+ */
+@Repository
+public class ThreadPoolRepository {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Attach a pooled thread to the discussion, concurrent claims never get the same thread.
+     * @return the openai id of the thread, null when the pool is empty
+     */
+    public String claimThread(int vsid, int did) {
+        List<String> claimed = jdbcTemplate.queryForList("""
+            update core.thread set did=?
+            where threadid = (
+                select threadid from core.thread
+                where did is null and vsid=? and type='code'
+                order by threadid
+                limit 1
+                for update skip locked
+            )
+            returning oai_threadid
+            """, String.class, did, vsid
+        );
+        return claimed.isEmpty() ? null : claimed.get(0);
+    }
+
+    public int countPooledThreads(int vsid) {
+        Integer count = jdbcTemplate.queryForObject(
+            "select count(*) from core.thread where did is null and vsid=? and type='code'", Integer.class, vsid
+        );
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return false when the project of the vector store is deleted, the thread is not stored
+     */
+    public boolean addPooledThread(int vsid, String oaiThreadId) {
+        return jdbcTemplate.update("""
+            insert into core.thread (oai_threadid, vsid, did, type)
+            select ?, ?, null, 'code'
+            where exists (
+                select 1 from core.vectorstore vs
+                join core.project p on p.projectid=vs.projectid
+                where vs.vsid=? and not p.isdeleted
+            )
+            """, oaiThreadId, vsid, vsid
+        ) > 0;
+    }
+
+    /**
+     * @return the vector stores of live projects having pooled threads
+     */
+    public List<Integer> getPooledVsids() {
+        return jdbcTemplate.queryForList("""
+            select distinct t.vsid from core.thread t
+            join core.vectorstore vs on vs.vsid=t.vsid
+            join core.project p on p.projectid=vs.projectid
+            where t.did is null and not p.isdeleted
+            """, Integer.class
+        );
+    }
+
+    /**
+     * Delete the pooled threads older than maxAge or whose vector store is gone.
+     * @return the openai ids of the deleted threads
+     */
+    public List<String> deleteExpiredThreads(Duration maxAge) {
+        return jdbcTemplate.queryForList("""
+            delete from core.thread
+            where did is null
+            and (created < now() - make_interval(secs => ?) or vsid not in (select vsid from core.vectorstore))
+            returning oai_threadid
+            """, String.class, maxAge.toSeconds()
+        );
+    }
+}
@@ -0,0 +1,219 @@
+package com.unbumpkin.codechat.service.openai;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.unbumpkin.codechat.dto.request.CreateVSFileRequest;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+
+/**
+ * Attach many files to a vector store with the file batch endpoint.
+ * The requests are split in chunks of at most maxBatchSize files, all the chunks are
+ * submitted first and then each chunk status is polled until it is no longer in progress.
+ * A batch completes even when some of its files failed, those files are sent again in new batches.
+ */
+public class VectorStoreFileBatch {
+    // Limit of files in one file batch on the provider side
+    public static final int MAX_BATCH_SIZE = 500;
+    // New batches for the files that failed in the previous ones
+    private static final int MAX_RETRIES = 2;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final OaiHttpClient httpClient;
+    private final String vsOaiId;
+    private int maxBatchSize = MAX_BATCH_SIZE;
+    private long pollIntervalMs = 1000;
+    private long maxPollIntervalMs = 10000;
+
+    public record BatchStatus(String batchId, String status, int completed, int failed, int total) {
+        public boolean isDone() {
+            return !"in_progress".equals(status);
+        }
+    }
+
+    public VectorStoreFileBatch(OaiHttpClient httpClient, String vsOaiId) {
+        this.httpClient = httpClient;
+        this.vsOaiId = vsOaiId;
+    }
+
+    public VectorStoreFileBatch setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.min(Math.max(1, maxBatchSize), MAX_BATCH_SIZE);
+        return this;
+    }
+
+    public VectorStoreFileBatch setPollInterval(long pollIntervalMs, long maxPollIntervalMs) {
+        this.pollIntervalMs = pollIntervalMs;
+        this.maxPollIntervalMs = Math.max(pollIntervalMs, maxPollIntervalMs);
+        return this;
+    }
+
+    /**
+     * Attach the files and wait for every batch to complete, the failed files are retried.
+     * @return the final status of each batch, retries included
+     * @throws IOException if a batch could not be created, ended up failed or cancelled,
+     * or some files still failed after the retries
+     */
+    public List<BatchStatus> addFiles(Collection<CreateVSFileRequest> requests) throws IOException {
+        List<CreateVSFileRequest> lRequests = new ArrayList<>(requests);
+        List<BatchStatus> statuses = new ArrayList<>();
+        for (int attempt = 0; ; attempt++) {
+            List<BatchStatus> done = runBatches(lRequests);
+            statuses.addAll(done);
+            Set<String> failed = new HashSet<>();
+            for (BatchStatus status : done) {
+                if (status.failed() > 0) {
+                    failed.addAll(listFailedFiles(status));
+                }
+            }
+            if (failed.isEmpty()) {
+                return statuses;
+            }
+            if (attempt >= MAX_RETRIES) {
+                throw new IOException(failed.size()+" files could not be attached to vector store "+vsOaiId
+                    +" after "+(attempt+1)+" attempts: "+failed);
+            }
+            lRequests = lRequests.stream().filter(request -> failed.contains(request.fileId())).toList();
+            System.out.println(failed.size()+" files failed in vector store "+vsOaiId+", sent again");
+        }
+    }
+
+    private List<BatchStatus> runBatches(List<CreateVSFileRequest> lRequests) throws IOException {
+        Map<String,BatchStatus> pending = new LinkedHashMap<>();
+        for (int from = 0; from < lRequests.size(); from += maxBatchSize) {
+            List<CreateVSFileRequest> chunk = lRequests.subList(from, Math.min(from+maxBatchSize, lRequests.size()));
+            BatchStatus status = createBatch(chunk);
+            System.out.println("File batch "+status.batchId()+" of "+chunk.size()+" files created in vector store "+vsOaiId);
+            pending.put(status.batchId(), status);
+        }
+        List<BatchStatus> done = new ArrayList<>(pending.size());
+        long interval = pollIntervalMs;
+        while (!pending.isEmpty()) {
+            for (String batchId : new ArrayList<>(pending.keySet())) {
+                BatchStatus status = pending.get(batchId);
+                if (!status.isDone()) {
+                    status = retrieveBatch(batchId);
+                }
+                if (status.isDone()) {
+                    pending.remove(batchId);
+                    done.add(status);
+                    System.out.println("File batch "+batchId+" "+status.status()+": "+status.completed()+"/"+status.total()+" files");
+                }
+            }
+            if (!pending.isEmpty()) {
+                sleep(interval);
+                interval = Math.min(interval*2, maxPollIntervalMs);
+            }
+        }
+        for (BatchStatus status : done) {
+            if (!"completed".equals(status.status())) {
+                throw new IOException("File batch "+status.batchId()+" in vector store "+vsOaiId+" ended with status "+status.status()
+                    +" ("+status.failed()+" failed out of "+status.total()+")");
+            }
+        }
+        return done;
+    }
+
+    public BatchStatus createBatch(List<CreateVSFileRequest> chunk) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode files = body.putArray("files");
+        for (CreateVSFileRequest request : chunk) {
+            ObjectNode file = files.addObject();
+            file.put("file_id", request.fileId());
+            if (request.attributes() != null) {
+                file.set("attributes", objectMapper.valueToTree(request.attributes()));
+            }
+        }
+        HttpRequest httpRequest = newRequest("/vector_stores/"+vsOaiId+"/file_batches")
+            .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+            .build();
+        return toStatus(send(httpRequest));
+    }
+
+    public BatchStatus retrieveBatch(String batchId) throws IOException {
+        HttpRequest httpRequest = newRequest("/vector_stores/"+vsOaiId+"/file_batches/"+batchId)
+            .GET()
+            .build();
+        return toStatus(send(httpRequest));
+    }
+
+    /**
+     * @return the ids of the files that failed in the batch
+     * @throws IOException if the batch reports failed files that are not listed
+     */
+    public List<String> listFailedFiles(BatchStatus status) throws IOException {
+        List<String> fileIds = new ArrayList<>(status.failed());
+        String after = null;
+        do {
+            String path = "/vector_stores/"+vsOaiId+"/file_batches/"+status.batchId()+"/files?filter=failed&limit=100"
+                +(after == null ? "" : "&after="+after);
+            JsonNode page = send(newRequest(path).GET().build());
+            for (JsonNode file : page.path("data")) {
+                fileIds.add(file.path("id").asText());
+            }
+            after = page.path("has_more").asBoolean() ? page.path("last_id").asText(null) : null;
+        } while (after != null);
+        if (fileIds.isEmpty()) {
+            throw new IOException("File batch "+status.batchId()+" in vector store "+vsOaiId+" has "+status.failed()
+                +" failed files but none is listed");
+        }
+        return fileIds;
+    }
+
+    /**
+     * Replace the attributes of a file already in the vector store, the file is not indexed again.
+     */
+    public void updateAttributes(String fileId, Map<String,String> attributes) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.set("attributes", objectMapper.valueToTree(attributes));
+        HttpRequest httpRequest = newRequest("/vector_stores/"+vsOaiId+"/files/"+fileId)
+            .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)))
+            .build();
+        send(httpRequest);
+    }
+
+    private HttpRequest.Builder newRequest(String path) {
+        return httpClient.request(path).header("Content-Type", "application/json");
+    }
+
+    private JsonNode send(HttpRequest request) throws IOException {
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(), Lane.bulk);
+        if (response.statusCode() >= 300) {
+            throw new IOException("Vector store file batch request "+request.uri()+" failed with status "
+                +response.statusCode()+": "+response.body());
+        }
+        return objectMapper.readTree(response.body());
+    }
+
+    private static BatchStatus toStatus(JsonNode node) {
+        JsonNode counts = node.path("file_counts");
+        return new BatchStatus(
+            node.path("id").asText(),
+            node.path("status").asText(),
+            counts.path("completed").asInt(),
+            counts.path("failed").asInt(),
+            counts.path("total").asInt()
+        );
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file batches", e);
+        }
+    }
+}
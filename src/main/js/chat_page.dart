@@ -1,7 +1,8 @@
 import 'dart:async';
 
 import 'package:codechatui/src/services/auth_provider.dart';
-import 'package:codechatui/src/services/message_service.dart';
+import 'package:codechatui/src/services/answer_stream_service.dart';
+import 'package:codechatui/src/services/message_history_service.dart';
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';  // Add this import for keyboard keys
 import 'package:codechatui/src/models/project.dart';
@@ -26,11 +27,15 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
   late AuthProvider authProvider;
   late TabController _tabController;
   late DiscussionService _discussionService;
-  late MessageService _messageService;
+  late AnswerStreamService _answerStreamService;
+  late MessageHistoryService _historyService;
   final TextEditingController _messageController = TextEditingController();
   final ScrollController _scrollController = ScrollController();
   final FocusNode _messageFocusNode = FocusNode();  // Add this for keyboard handling
   final List<Message> _messages = [];
+  // Cursor of the older messages not loaded yet, null when the discussion is fully loaded
+  int? _olderCursor;
+  bool _isLoadingOlder = false;
   
   // Panel control variables
   double _leftPanelWidth = 250.0; // Default width
@@ -39,6 +44,9 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
   // Discussion tracking
   int _selectedDiscussionId = 0; // 0 means no discussion selected
   List<Discussion> _discussions = [];
+  // Cursor of the older discussions not loaded yet, null when all are loaded
+  int? _discussionsCursor;
+  bool _isLoadingDiscussions = false;
    
   bool _isLoading = false;
   
@@ -48,7 +56,9 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
      authProvider = Provider.of<AuthProvider>(context, listen: false);
     _tabController = TabController(length: 2, vsync: this);
     _discussionService = DiscussionService(authProvider: authProvider);
-    _messageService = MessageService(authProvider: authProvider);
+    _answerStreamService = AnswerStreamService(authProvider: authProvider);
+    _historyService = MessageHistoryService(authProvider: authProvider);
+    _scrollController.addListener(_onScroll);
     
     // Method 1: Using addPostFrameCallback (recommended)
     WidgetsBinding.instance.addPostFrameCallback((_) {
@@ -77,9 +87,11 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
     });
     
     try {
-      final discussions = await _discussionService.getDiscussionsByProject(widget.project.projectId);
+      // Only the latest page, the older discussions are loaded when the list is scrolled to its end
+      final page = await _historyService.getDiscussionsPage(widget.project.projectId);
       setState(() {
-        _discussions = discussions;
+        _discussions = page.discussions;
+        _discussionsCursor = page.nextCursor;
       });
     } catch (e) {
       // Show error to user
@@ -96,6 +108,28 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
     }
   }
   
+  Future<void> _loadMoreDiscussions() async {
+    final cursor = _discussionsCursor;
+    if (cursor == null || _isLoadingDiscussions) return;
+    _isLoadingDiscussions = true;
+    try {
+      final page = await _historyService.getDiscussionsPage(widget.project.projectId, before: cursor);
+      if (!mounted) return;
+      setState(() {
+        _discussions.addAll(page.discussions);
+        _discussionsCursor = page.nextCursor;
+      });
+    } catch (e) {
+      if (mounted) {
+        ScaffoldMessenger.of(context).showSnackBar(
+          SnackBar(content: Text('Failed to load discussions: $e'))
+        );
+      }
+    } finally {
+      _isLoadingDiscussions = false;
+    }
+  }
+
   // Load messages for a specific discussion
   Future<void> _selectDiscussion(int discussionId) async {
     if (_selectedDiscussionId == discussionId) return;
@@ -103,12 +137,15 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
     setState(() {
       _isLoading = true;
       _messages.clear();
+      _olderCursor = null;
     });
     
     try {
-      final messages = await _messageService.getMessagesByDiscussionId(discussionId);
+      // Only the latest page, the older messages are loaded when scrolling up
+      final page = await _historyService.getMessagesPage(discussionId);
       setState(() {
-        _messages.addAll(messages);
+        _messages.addAll(page.messages);
+        _olderCursor = page.nextCursor;
         _selectedDiscussionId = discussionId;
       });
       
@@ -161,18 +198,15 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
       }
     }
     
-    // Send user message
-    final msgRequest = MessageCreateRequest(
-      did: _selectedDiscussionId,
-      role: "user",
-      message: messageText,
-    );
-    
     try {
-      // Add user message to UI
-      final userMsg = await _discussionService.askQuestion(msgRequest);
+      // Add user message to UI, replaced by the stored one when the server sends it back
+      final userIndex = _messages.length;
       setState(() {
-        _messages.add(userMsg);
+        _messages.add(Message(
+          discussionId: _selectedDiscussionId,
+          role: "user",
+          text: messageText,
+        ));
       });
       _scrollToBottom();
       
@@ -212,9 +246,38 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
         });
       });
       
-      // Get actual AI response
+      // Stream the AI response, the thinking animation stops at the first token
       try {
-        final message = await _discussionService.answerQuestion(_selectedDiscussionId);
+        final partial = StringBuffer();
+        Message? message;
+        // The question is stored and answered by the same request
+        await for (final event in _answerStreamService.askAndAnswer(_selectedDiscussionId, messageText)) {
+          if (event.question != null) {
+            if (mounted) {
+              setState(() {
+                _messages[userIndex] = event.question!;
+              });
+            }
+          } else if (event.token != null) {
+            progressTimer.cancel();
+            partial.write(event.token);
+            if (mounted) {
+              setState(() {
+                _messages[index] = Message(
+                  discussionId: _selectedDiscussionId,
+                  role: "assistant",
+                  text: partial.toString(),
+                  isLoading: true,
+                );
+              });
+            }
+          } else if (event.message != null) {
+            message = event.message;
+          }
+        }
+        if (message == null) {
+          throw Exception('The answer stream ended without a message');
+        }
         
         // Cancel the progress timer
         progressTimer.cancel();
@@ -224,7 +287,7 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
             // Remove the temporary message
             _messages.removeWhere((message) => message.isLoading == true);
             // Add the real response
-            _messages.add(message);
+            _messages.add(message!);
           });
           _scrollToBottom();
         }
@@ -259,6 +322,44 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
     }
   }
   
+  void _onScroll() {
+    if (_scrollController.position.pixels <= _scrollController.position.minScrollExtent + 200) {
+      _loadOlderMessages();
+    }
+  }
+
+  // Prepend the previous page and keep the visible messages in place
+  Future<void> _loadOlderMessages() async {
+    final cursor = _olderCursor;
+    if (cursor == null || _isLoadingOlder || _selectedDiscussionId == 0) return;
+    final discussionId = _selectedDiscussionId;
+    _isLoadingOlder = true;
+    try {
+      final page = await _historyService.getMessagesPage(discussionId, before: cursor);
+      if (!mounted || discussionId != _selectedDiscussionId) return;
+      final extentBefore = _scrollController.position.maxScrollExtent;
+      setState(() {
+        _messages.insertAll(0, page.messages);
+        _olderCursor = page.nextCursor;
+      });
+      WidgetsBinding.instance.addPostFrameCallback((_) {
+        if (_scrollController.hasClients) {
+          _scrollController.jumpTo(
+            _scrollController.position.pixels + _scrollController.position.maxScrollExtent - extentBefore,
+          );
+        }
+      });
+    } catch (e) {
+      if (mounted) {
+        ScaffoldMessenger.of(context).showSnackBar(
+          SnackBar(content: Text('Failed to load older messages: $e'))
+        );
+      }
+    } finally {
+      _isLoadingOlder = false;
+    }
+  }
+
   void _scrollToBottom() {
     Future.delayed(const Duration(milliseconds: 100), () {
       if (_scrollController.hasClients) {
@@ -330,6 +431,7 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
               setState(() {
                 _selectedDiscussionId = 0;
                 _messages.clear();
+                _olderCursor = null;
               });
             },
             tooltip: 'New Discussion',
@@ -530,6 +632,9 @@ class _ChatPageState extends State<ChatPage> with SingleTickerProviderStateMixin
       itemCount: _discussions.length,
       itemBuilder: (context, index) {
         final discussion = _discussions[index];
+        if (index == _discussions.length - 1 && _discussionsCursor != null) {
+          WidgetsBinding.instance.addPostFrameCallback((_) => _loadMoreDiscussions());
+        }
         return Tooltip(
           message: 'Created: ${_formatDate(discussion.created)}\n'
                   '${discussion.description.isNotEmpty ? discussion.description : discussion.name}',
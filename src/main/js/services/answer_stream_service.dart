@@ -0,0 +1,82 @@
+import 'dart:async';
+import 'dart:convert';
+
+import 'package:http/http.dart' as http;
+import 'package:codechatui/src/config/app_config.dart';
+import 'package:codechatui/src/models/message.dart';
+import 'package:codechatui/src/services/auth_provider.dart';
+
+/// An event of the answer-question/stream and ask-and-answer endpoints:
+/// the stored user [question], a text [token] of the answer being written, or the final stored [message].
+class AnswerStreamEvent {
+  final String? token;
+  final Message? message;
+  final Message? question;
+
+  AnswerStreamEvent.token(this.token) : message = null, question = null;
+  AnswerStreamEvent.message(this.message) : token = null, question = null;
+  AnswerStreamEvent.question(this.question) : token = null, message = null;
+}
+
+class AnswerStreamService {
+  final AuthProvider authProvider;
+
+  AnswerStreamService({required this.authProvider});
+
+  Stream<AnswerStreamEvent> answerQuestion(int did) {
+    return _events(http.Request(
+      'POST',
+      Uri.parse('${AppConfig.apiVersionBaseUrl}/discussions/$did/answer-question/stream'),
+    ));
+  }
+
+  /// Store the user question and stream its answer in a single request.
+  Stream<AnswerStreamEvent> askAndAnswer(int did, String message) {
+    final request = http.Request(
+      'POST',
+      Uri.parse('${AppConfig.apiVersionBaseUrl}/discussions/ask-and-answer'),
+    );
+    request.headers['Content-Type'] = 'application/json';
+    request.body = jsonEncode({'did': did, 'role': 'user', 'message': message});
+    return _events(request);
+  }
+
+  Stream<AnswerStreamEvent> _events(http.Request request) async* {
+    final client = http.Client();
+    try {
+      request.headers['Accept'] = 'text/event-stream';
+      request.headers['Authorization'] = 'Bearer ${authProvider.token}';
+      final response = await client.send(request);
+      if (response.statusCode != 200) {
+        throw Exception('Failed to stream answer: ${response.statusCode}');
+      }
+
+      String event = 'message';
+      final data = StringBuffer();
+      await for (final line in response.stream
+          .transform(utf8.decoder)
+          .transform(const LineSplitter())) {
+        if (line.startsWith('event:')) {
+          event = line.substring(6).trim();
+        } else if (line.startsWith('data:')) {
+          // Multiple data lines of the same event are joined with a new line
+          if (data.isNotEmpty) data.write('\n');
+          data.write(line.length > 5 && line[5] == ' ' ? line.substring(6) : line.substring(5));
+        } else if (line.isEmpty && data.isNotEmpty) {
+          if (event == 'token') {
+            // Tokens are json strings so their spaces and new lines survive the data line
+            yield AnswerStreamEvent.token(jsonDecode(data.toString()) as String);
+          } else if (event == 'message') {
+            yield AnswerStreamEvent.message(Message.fromJson(jsonDecode(data.toString())));
+          } else if (event == 'question') {
+            yield AnswerStreamEvent.question(Message.fromJson(jsonDecode(data.toString())));
+          }
+          event = 'message';
+          data.clear();
+        }
+      }
+    } finally {
+      client.close();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+import 'dart:convert';
+
+import 'package:http/http.dart' as http;
+import 'package:codechatui/src/config/app_config.dart';
+import 'package:codechatui/src/models/discussion.dart';
+import 'package:codechatui/src/models/message.dart';
+import 'package:codechatui/src/services/auth_provider.dart';
+
+/// A page of a discussion history in chronological order,
+/// [nextCursor] reads the older messages and is null on the first page of the discussion.
+class MessagePage {
+  final List<Message> messages;
+  final int? nextCursor;
+
+  MessagePage({required this.messages, this.nextCursor});
+
+  factory MessagePage.fromJson(Map<String, dynamic> json) {
+    return MessagePage(
+      messages: (json['items'] as List).map((item) => Message.fromJson(item)).toList(),
+      nextCursor: json['nextCursor'],
+    );
+  }
+}
+
+/// A page of the discussions of a project newest first,
+/// [nextCursor] reads the older discussions and is null on the last page.
+class DiscussionPage {
+  final List<Discussion> discussions;
+  final int? nextCursor;
+
+  DiscussionPage({required this.discussions, this.nextCursor});
+
+  factory DiscussionPage.fromJson(Map<String, dynamic> json) {
+    return DiscussionPage(
+      discussions: (json['items'] as List).map((item) => Discussion.fromJson(item)).toList(),
+      nextCursor: json['nextCursor'],
+    );
+  }
+}
+
+class MessageHistoryService {
+  final AuthProvider authProvider;
+
+  MessageHistoryService({required this.authProvider});
+
+  /// The latest messages of the discussion, or the ones before [before].
+  Future<MessagePage> getMessagesPage(int did, {int? before, int limit = 50}) async {
+    final uri = Uri.parse('${AppConfig.apiVersionBaseUrl}/discussions/$did/messages').replace(
+      queryParameters: {
+        if (before != null) 'before': '$before',
+        'limit': '$limit',
+      },
+    );
+    final response = await http.get(uri, headers: {'Authorization': 'Bearer ${authProvider.token}'});
+    if (response.statusCode != 200) {
+      throw Exception('Failed to load messages: ${response.statusCode}');
+    }
+    return MessagePage.fromJson(jsonDecode(utf8.decode(response.bodyBytes)));
+  }
+
+  /// The latest discussions of the project, or the ones before [before].
+  Future<DiscussionPage> getDiscussionsPage(int projectId, {int? before, int limit = 50}) async {
+    final uri = Uri.parse('${AppConfig.apiVersionBaseUrl}/discussions/project/$projectId/page').replace(
+      queryParameters: {
+        if (before != null) 'before': '$before',
+        'limit': '$limit',
+      },
+    );
+    final response = await http.get(uri, headers: {'Authorization': 'Bearer ${authProvider.token}'});
+    if (response.statusCode != 200) {
+      throw Exception('Failed to load discussions: ${response.statusCode}');
+    }
+    return DiscussionPage.fromJson(jsonDecode(utf8.decode(response.bodyBytes)));
+  }
+}
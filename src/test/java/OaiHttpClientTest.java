@@ -0,0 +1,136 @@
+package com.unbumpkin.codechat.service.openai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.unbumpkin.codechat.dto.request.CreateVSFileRequest;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient.Lane;
+import com.unbumpkin.codechat.service.openai.VectorStoreFileBatch.BatchStatus;
+
+/**
+ * Runs the client against a local stub of the OpenAI api.
+ */
+class OaiHttpClientTest {
+    record Received(String method, String path, String authorization, String beta, String body) {}
+
+    private HttpServer server;
+    private String baseUrl;
+    private final List<Received> received = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        baseUrl = "http://127.0.0.1:"+server.getAddress().getPort()+"/v1";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void sendsRequestsToBaseUrlWithHeaders() throws IOException {
+        respond("/v1/threads/thread_1", exchange -> reply(exchange, 200, Map.of(), "{}"));
+        OaiHttpClient client = new OaiHttpClient(baseUrl+"/", "sk-test", 50, 8);
+
+        HttpResponse<String> response = client.send(client.request("/threads/thread_1").GET().build(), HttpResponse.BodyHandlers.ofString(), Lane.interactive);
+
+        assertEquals(200, response.statusCode());
+        Received request = received.get(0);
+        assertEquals("GET", request.method());
+        assertEquals("/v1/threads/thread_1", request.path());
+        assertEquals("Bearer sk-test", request.authorization());
+        assertEquals("assistants=v2", request.beta());
+    }
+
+    @Test
+    void omitsAuthorizationWithoutKey() throws IOException {
+        respond("/v1/threads/thread_1", exchange -> reply(exchange, 200, Map.of(), "{}"));
+        OaiHttpClient client = new OaiHttpClient(baseUrl, "", 50, 8);
+
+        client.send(client.request("/threads/thread_1").GET().build(), HttpResponse.BodyHandlers.ofString(), Lane.bulk);
+
+        assertNull(received.get(0).authorization());
+    }
+
+    @Test
+    void retriesRateLimitedRequestAndLowersRate() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        respond("/v1/embeddings", exchange -> {
+            if (calls.getAndIncrement() == 0) {
+                reply(exchange, 429, Map.of("retry-after-ms", "50"), "{\"error\":{\"message\":\"Rate limit\"}}");
+            } else {
+                reply(exchange, 200, Map.of(), "{\"data\":[]}");
+            }
+        });
+        OaiHttpClient client = new OaiHttpClient(baseUrl, "sk-test", 40, 8);
+
+        HttpResponse<String> response = client.send(client.request("/embeddings").GET().build(), HttpResponse.BodyHandlers.ofString(), Lane.bulk);
+
+        assertEquals(200, response.statusCode());
+        assertEquals(2, calls.get());
+        assertTrue(client.rate() < 40);
+    }
+
+    @Test
+    void vectorStoreFileBatchUsesInjectedClient() throws IOException {
+        respond("/v1/vector_stores/vs_1/file_batches", exchange -> reply(exchange, 200, Map.of(),
+            "{\"id\":\"vsfb_1\",\"status\":\"completed\",\"file_counts\":{\"completed\":1,\"failed\":0,\"total\":1}}"));
+        OaiHttpClient client = new OaiHttpClient(baseUrl, "sk-test", 50, 8);
+
+        BatchStatus status = new VectorStoreFileBatch(client, "vs_1").createBatch(List.of(new CreateVSFileRequest("file_1", null)));
+
+        assertEquals("vsfb_1", status.batchId());
+        assertEquals(1, status.completed());
+        Received request = received.get(0);
+        assertEquals("POST", request.method());
+        assertEquals("Bearer sk-test", request.authorization());
+        assertTrue(request.body().contains("\"file_id\":\"file_1\""));
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void respond(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            received.add(new Received(
+                exchange.getRequestMethod(),
+                exchange.getRequestURI().getPath(),
+                exchange.getRequestHeaders().getFirst("Authorization"),
+                exchange.getRequestHeaders().getFirst("OpenAI-Beta"),
+                body
+            ));
+            handler.handle(exchange);
+        });
+    }
+
+    private static void reply(HttpExchange exchange, int status, Map<String,String> headers, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.unbumpkin.codechat.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockConstruction;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockedConstruction;
+import org.mockito.MockedStatic;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.sun.net.httpserver.HttpServer;
+import com.unbumpkin.codechat.dto.request.CreateVSFileRequest;
+import com.unbumpkin.codechat.model.ProjectResource;
+import com.unbumpkin.codechat.model.UserSecret;
+import com.unbumpkin.codechat.model.UserSecret.Labels;
+import com.unbumpkin.codechat.model.openai.OaiFile.Purposes;
+import com.unbumpkin.codechat.repository.ProjectResourceRepository;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.FileReference;
+import com.unbumpkin.codechat.repository.openai.OaiFileReferenceRepository.ReleasedFile;
+import com.unbumpkin.codechat.repository.openai.VectorStoreRepository;
+import com.unbumpkin.codechat.repository.openai.VectorStoreRepository.RepoVectorStoreResponse;
+import com.unbumpkin.codechat.service.IngestionJobService.JobProgress;
+import com.unbumpkin.codechat.service.IngestionPipeline.IngestedFile;
+import com.unbumpkin.codechat.service.RepositoryMirror.Changes;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager;
+import com.unbumpkin.codechat.service.openai.CCProjectFileManager.Types;
+import com.unbumpkin.codechat.service.openai.OaiFileUploadCache;
+import com.unbumpkin.codechat.service.openai.OaiHttpClient;
+import com.unbumpkin.codechat.service.openai.QuestionRouter;
+import com.unbumpkin.codechat.service.openai.VectorStoreFile;
+
+/**
+ * refreshRepo against mocked repositories and a stub of the vector store api.
+ */
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ProjectIngestionServiceTest {
+    private static final int PROJECT_ID = 3;
+    private static final int PR_ID = 7;
+    private static final String PATH = "src/App.java";
+
+    @Mock
+    private OaiFileReferenceRepository oaiFileReferenceRepository;
+    @Mock
+    private VectorStoreRepository vsRepository;
+    @Mock
+    private ProjectResourceRepository projectResourceRepository;
+    @Mock
+    private IngestionPipeline ingestionPipeline;
+    @Mock
+    private OaiFileUploadCache uploadCache;
+    @Mock
+    private RepositoryMirror repositoryMirror;
+    @Mock
+    private LocalRetrievalService localRetrievalService;
+    @Mock
+    private SymbolIndexService symbolIndexService;
+    @Mock
+    private AnswerCache answerCache;
+    @Mock
+    private AnswerReferenceResolver referenceResolver;
+    @Mock
+    private QuestionRouter questionRouter;
+    @InjectMocks
+    private ProjectIngestionService service;
+
+    @TempDir
+    Path workDir;
+
+    private HttpServer server;
+    private final List<String> batches = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/vector_stores", exchange -> {
+            batches.add(exchange.getRequestURI().getPath()+" "+new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            byte[] body = "{\"id\":\"vsfb_1\",\"status\":\"completed\",\"file_counts\":{\"completed\":1,\"failed\":0,\"total\":1}}"
+                .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        OaiHttpClient httpClient = new OaiHttpClient("http://127.0.0.1:"+server.getAddress().getPort()+"/v1", "sk-test", 50, 8);
+        ReflectionTestUtils.setField(service, "httpClient", httpClient);
+        ReflectionTestUtils.setField(service, "transactionTemplate", new TransactionTemplate(mock(PlatformTransactionManager.class)));
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void modifiedFileReplacesOnlyItsOldUpload() throws Exception {
+        ProjectResource resource = mock(ProjectResource.class);
+        when(resource.uri()).thenReturn("https://github.com/unbumpkin/app.git");
+        when(resource.prId()).thenReturn(PR_ID);
+        when(resource.secrets()).thenReturn(Map.of(Labels.commitHash, new UserSecret(Labels.commitHash, "old")));
+        when(projectResourceRepository.getResources(PROJECT_ID)).thenReturn(List.of(resource));
+        when(repositoryMirror.fetch(resource)).thenReturn("new");
+        when(repositoryMirror.getChanges(PR_ID, "old", "new")).thenReturn(new Changes(List.of(), List.of(PATH), List.of(), List.of()));
+        Files.createDirectories(workDir.resolve("src"));
+        Files.writeString(workDir.resolve(PATH), "class App {\n    int version = 2;\n}\n");
+        when(repositoryMirror.materialize(eq(PR_ID), eq("new"), anyList())).thenReturn(workDir);
+
+        FileReference oldReference = new FileReference(PR_ID, "file-old", "App.java", workDir.toString(), PATH, Purposes.assistants, 3, "old-hash");
+        FileReference newReference = new FileReference(PR_ID, "file-new", "App.java", workDir.toString(), PATH, Purposes.assistants, 3, "new-hash");
+        when(oaiFileReferenceRepository.getReferencesByPaths(eq(PR_ID), anyList())).thenReturn(Map.of(PATH, oldReference));
+        when(ingestionPipeline.ingest(eq(PROJECT_ID), eq(PR_ID), any(), anyInt(), any())).thenReturn(List.of(
+            new IngestedFile(newReference, new CreateVSFileRequest("file-new", Map.of("path", PATH)), Types.code, false)
+        ));
+        when(uploadCache.releaseFiles(eq(PR_ID), any())).thenReturn(List.of(new ReleasedFile("file-old", true, true)));
+
+        Map<Types,RepoVectorStoreResponse> vsMap = Map.of(
+            Types.code, store("vs_code"), Types.config, store("vs_config"), Types.markup, store("vs_markup"), Types.all, store("vs_all")
+        );
+        try (
+            MockedStatic<CCProjectFileManager> fileManager = mockStatic(CCProjectFileManager.class, invocation ->
+                invocation.getMethod().getName().equals("getVectorStoretMap") ? vsMap : invocation.callRealMethod());
+            MockedConstruction<VectorStoreFile> vectorStoreFiles = mockConstruction(VectorStoreFile.class)
+        ) {
+            service.refreshRepo(mock(JobProgress.class), PROJECT_ID);
+
+            // The row stored for the new upload at the same path is not released
+            verify(uploadCache).releaseFiles(PR_ID, List.of(oldReference));
+            verify(oaiFileReferenceRepository).storeReferences(List.of(newReference));
+            for (VectorStoreFile vectorStoreFile : vectorStoreFiles.constructed()) {
+                verify(vectorStoreFile, never()).removeFile("file-new");
+            }
+            // Code then all, see refreshRepo
+            verify(vectorStoreFiles.constructed().get(0)).removeFile("file-old");
+            verify(vectorStoreFiles.constructed().get(3)).removeFile("file-old");
+            verify(uploadCache).deleteUnreferenced(List.of(new ReleasedFile("file-old", true, true)));
+        }
+        assertEquals(2, batches.size());
+        assertTrue(batches.stream().anyMatch(batch -> batch.startsWith("/v1/vector_stores/vs_code/file_batches") && batch.contains("file-new")));
+        assertTrue(batches.stream().anyMatch(batch -> batch.startsWith("/v1/vector_stores/vs_all/file_batches") && batch.contains("file-new")));
+        verify(projectResourceRepository).updateSecret(PR_ID, Labels.commitHash, "new");
+        verify(answerCache).invalidateProject(PROJECT_ID);
+        verify(questionRouter).invalidateProject(PROJECT_ID);
+    }
+
+    private static RepoVectorStoreResponse store(String vsOaiId) {
+        RepoVectorStoreResponse store = mock(RepoVectorStoreResponse.class);
+        when(store.vsid()).thenReturn(vsOaiId);
+        return store;
+    }
+}
@@ -0,0 +1,97 @@
+package com.unbumpkin.codechat.service.openai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.unbumpkin.codechat.dto.request.CreateVSFileRequest;
+import com.unbumpkin.codechat.service.openai.VectorStoreFileBatch.BatchStatus;
+
+/**
+ * File batches against a local stub of the vector store api, file_2 fails until failures runs out.
+ */
+class VectorStoreFileBatchTest {
+    private HttpServer server;
+    private OaiHttpClient client;
+    private final List<String> created = new CopyOnWriteArrayList<>();
+    private volatile int failures;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/vector_stores/vs_1/file_batches", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/files")) {
+                reply(exchange, "{\"data\":[{\"id\":\"file_2\",\"status\":\"failed\"}],\"has_more\":false,\"last_id\":\"file_2\"}");
+                return;
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            created.add(body);
+            int total = body.split("file_id").length-1;
+            int failed = body.contains("file_2") && failures-- > 0 ? 1 : 0;
+            reply(exchange, "{\"id\":\"vsfb_"+created.size()+"\",\"status\":\"completed\",\"file_counts\":{\"completed\":"
+                +(total-failed)+",\"failed\":"+failed+",\"total\":"+total+"}}");
+        });
+        server.start();
+        client = new OaiHttpClient("http://127.0.0.1:"+server.getAddress().getPort()+"/v1", "sk-test", 50, 8);
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void retriesFailedFiles() throws IOException {
+        failures = 1;
+
+        List<BatchStatus> statuses = new VectorStoreFileBatch(client, "vs_1").addFiles(requests());
+
+        assertEquals(2, statuses.size());
+        assertEquals(2, created.size());
+        assertTrue(created.get(1).contains("file_2"));
+        assertFalse(created.get(1).contains("file_1"));
+        assertTrue(created.get(1).contains("\"path\":\"src/B.java\""));
+    }
+
+    @Test
+    void failsWhenFilesKeepFailing() {
+        failures = Integer.MAX_VALUE;
+
+        IOException error = assertThrows(IOException.class, () -> new VectorStoreFileBatch(client, "vs_1").addFiles(requests()));
+
+        assertTrue(error.getMessage().contains("file_2"));
+        assertEquals(3, created.size());
+    }
+
+    private static List<CreateVSFileRequest> requests() {
+        return List.of(
+            new CreateVSFileRequest("file_1", Map.of("path", "src/A.java")),
+            new CreateVSFileRequest("file_2", Map.of("path", "src/B.java"))
+        );
+    }
+
+    private static void reply(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}